@@ -0,0 +1,105 @@
+package CFos_Granule_Cells_2D_Benchmarks;
+
+import CFos_Granule_Cells_2D_Tools.ChannelReader;
+import CFos_Granule_Cells_2D_Tools.MappedTiffReader;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import loci.common.DataTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import org.apache.commons.io.FileUtils;
+
+
+/**
+ * Check that the mapped TIFF reader and Bio-Formats read the same plane of synthetic TIFF files,
+ * 8 and 16-bit and float written by ImageJ, and a LZW-compressed one that must be left to Bio-Formats
+ * Run with java -cp target/benchmarks.jar CFos_Granule_Cells_2D_Benchmarks.MappedTiffCheck, exits with 1 on mismatch
+ * @author ORION-CIRB
+ */
+public class MappedTiffCheck {
+
+    public static void main(String[] args) throws Exception {
+        SyntheticImages images = new SyntheticImages(700, 500, 500, 42);
+        File dir = Files.createTempDirectory("cfos-tiff-check").toFile();
+        int failures = 0;
+        try {
+            ImagePlus img = images.cfos;
+            failures += check(save(img.getProcessor().convertToByte(true), dir, "8bit"), true, images);
+            failures += check(save(img.getProcessor(), dir, "16bit"), true, images);
+            failures += check(save(img.getProcessor().convertToFloat(), dir, "32bit"), true, images);
+            failures += check(saveLzw((ShortProcessor) img.getProcessor(), dir), false, images);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+        System.out.println(failures == 0 ? "All planes match" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+
+    /**
+     * Read the ROI crop with both readers and compare pixels, return the number of failures
+     */
+    private static int check(String file, boolean mappable, SyntheticImages images) throws IOException, FormatException {
+        String name = new File(file).getName();
+        MappedTiffReader mapped = MappedTiffReader.open(file);
+        if (mapped != null)
+            mapped.close();
+        if ((mapped != null) != mappable) {
+            System.out.println(name + ": expected " + (mappable ? "mapped reading" : "Bio-Formats fallback"));
+            return(1);
+        }
+
+        ImageProcessor ipMapped = readCrop(file, true, images);
+        ImageProcessor ipBF = readCrop(file, false, images);
+        if (ipMapped.getWidth() != ipBF.getWidth() || ipMapped.getHeight() != ipBF.getHeight() || ipMapped.getBitDepth() != ipBF.getBitDepth()) {
+            System.out.println(name + ": crops differ in size or type");
+            return(1);
+        }
+        for (int y = 0; y < ipBF.getHeight(); y++)
+            for (int x = 0; x < ipBF.getWidth(); x++)
+                if (ipMapped.getf(x, y) != ipBF.getf(x, y)) {
+                    System.out.println(name + ": pixels differ at " + x + "," + y);
+                    return(1);
+                }
+        System.out.println(name + ": OK");
+        return(0);
+    }
+
+
+    private static ImageProcessor readCrop(String file, boolean mappedTiff, SyntheticImages images) throws IOException, FormatException {
+        System.setProperty("cfos.mappedTiff", String.valueOf(mappedTiff));
+        try (ChannelReader reader = new ChannelReader(file)) {
+            return(reader.readCrop(images.roi).getProcessor());
+        }
+    }
+
+
+    private static String save(ImageProcessor ip, File dir, String name) {
+        String file = new File(dir, name + ".tif").getPath();
+        new FileSaver(new ImagePlus(name, ip)).saveAsTiff(file);
+        return(file);
+    }
+
+
+    private static String saveLzw(ShortProcessor ip, File dir) throws IOException, FormatException {
+        String file = new File(dir, "16bit-lzw.tif").getPath();
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, "16bit-lzw", false, "XYZCT", FormatTools.getPixelTypeString(FormatTools.UINT16),
+                ip.getWidth(), ip.getHeight(), 1, 1, 1, 1);
+        try (TiffWriter writer = new TiffWriter()) {
+            writer.setMetadataRetrieve(meta);
+            writer.setCompression(TiffWriter.COMPRESSION_LZW);
+            writer.setId(file);
+            writer.saveBytes(0, DataTools.shortsToBytes((short[]) ip.getPixels(), false));
+        }
+        return(file);
+    }
+}
@@ -0,0 +1,89 @@
+package CFos_Granule_Cells_2D_Benchmarks;
+
+import CFos_Granule_Cells_2D_Tools.Detections2D;
+import CFos_Granule_Cells_2D_Tools.RoiResult;
+import CFos_Granule_Cells_2D_Tools.Tools;
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Whole analysis of one ROI, as done by BatchScheduler once crops are loaded:
+ * nuclei count, c-Fos detection, ROI area, overlay and results
+ * Cellpose is replaced by a runner returning the synthetic label image, so no Python nor GPU is needed
+ * Sizes are kept below the Cellpose tile size, since the stub can't return tiles of the mask
+ * @author ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcfos.filterEngine=cpu", "-Xmx4g"})
+public class PipelineBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"200", "1000"})
+    public double cfosPerMpx;
+
+    Tools tools;
+    SyntheticImages images;
+    File outDir;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        images = new SyntheticImages(size, size, cfosPerMpx, 42);
+        tools = new Tools();
+        tools.cal = images.cal;
+        tools.pixArea = images.cal.pixelWidth * images.cal.pixelHeight;
+        tools.setUseMaskCache(false);
+        tools.setCellposeRunner(imgs -> {
+            List<ImagePlus> masks = new ArrayList<>();
+            for (ImagePlus img : imgs)
+                masks.add(images.labels.resize(img.getWidth(), img.getHeight(), "none"));
+            return(masks);
+        });
+        outDir = Files.createTempDirectory("cfos-bench").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(outDir);
+    }
+
+
+    @Benchmark
+    public RoiResult analyzeRoi() throws IOException {
+        int nbNuclei = tools.getNbNuclei(images.nuclei, images.roi);
+        Detections2D detections = tools.cellposeDetection(Collections.singletonList(images.cfos), Collections.singletonList(images.roi)).get(0);
+        double roiArea = tools.roiArea(images.roi, images.cfos);
+        RoiResult result = new RoiResult("", "bench", images.roi.getName(), roiArea, nbNuclei, detections.size());
+        result.setObjects(detections, images.roi.getBounds(), images.cal);
+        tools.drawResults(detections, images.cfos, "bench", outDir.getPath() + File.separator);
+        detections.close();
+        return(result);
+    }
+}
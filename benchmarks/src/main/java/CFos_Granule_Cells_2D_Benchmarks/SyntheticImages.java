@@ -0,0 +1,89 @@
+package CFos_Granule_Cells_2D_Benchmarks;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+
+/**
+ * Synthetic granule cell layer: packed Hoechst nuclei, sparse c-Fos cells and the label image
+ * Cellpose would return for them, in an elliptic ROI
+ * A fixed seed gives the same images in every run, so that results can be compared across versions
+ * @author ORION-CIRB
+ */
+public class SyntheticImages {
+
+    public static final double PIXEL_SIZE = 0.1625;
+
+    public final ImagePlus nuclei;
+    public final ImagePlus cfos;
+    public final ImagePlus labels;
+    public final Roi roi;
+    public final Calibration cal = new Calibration();
+
+
+    /**
+     * width x height 16-bit images, with cfosPerMpx c-Fos cells per megapixel
+     */
+    public SyntheticImages(int width, int height, double cfosPerMpx, long seed) {
+        cal.pixelWidth = cal.pixelHeight = PIXEL_SIZE;
+        cal.pixelDepth = 1;
+        Random random = new Random(seed);
+
+        // Nuclei of ~50 µm2 packed on a jittered grid
+        double nucRadius = Math.sqrt(50 / Math.PI) / PIXEL_SIZE;
+        ShortProcessor nucIp = background(width, height, 200, 30, random);
+        for (double y = nucRadius; y < height; y += 1.8*nucRadius)
+            for (double x = nucRadius; x < width; x += 1.8*nucRadius)
+                disk(nucIp, null, x + random.nextGaussian()*nucRadius/4, y + random.nextGaussian()*nucRadius/4,
+                        nucRadius*(0.8 + 0.4*random.nextDouble()), 1500 + random.nextInt(1000), 0);
+
+        // c-Fos cells of 10 to 100 µm2, some of them too small, too large or too dim to be kept
+        ShortProcessor cfosIp = background(width, height, 100, 20, random);
+        ShortProcessor labelIp = new ShortProcessor(width, height);
+        int nbCells = (int) Math.min(65535, Math.round(cfosPerMpx * width * height / 1e6));
+        for (int label = 1; label <= nbCells; label++) {
+            double area = 10 + 90*random.nextDouble();
+            disk(cfosIp, labelIp, width*random.nextDouble(), height*random.nextDouble(), Math.sqrt(area / Math.PI) / PIXEL_SIZE,
+                    150 + random.nextInt(900), label);
+        }
+
+        nuclei = new ImagePlus("nuclei", nucIp);
+        cfos = new ImagePlus("cfos", cfosIp);
+        labels = new ImagePlus("labels", labelIp);
+        nuclei.setCalibration(cal);
+        cfos.setCalibration(cal);
+        labels.setCalibration(cal);
+        roi = new OvalRoi(width*0.05, height*0.05, width*0.9, height*0.9);
+        roi.setName("synthetic");
+    }
+
+
+    private static ShortProcessor background(int width, int height, int mean, int sd, Random random) {
+        short[] pixels = new short[width*height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) Math.max(0, mean + random.nextGaussian()*sd);
+        return(new ShortProcessor(width, height, pixels, null));
+    }
+
+
+    /**
+     * Add intensity inside a disk, and draw it in the label image if any
+     */
+    private static void disk(ShortProcessor ip, ShortProcessor labelIp, double xc, double yc, double radius, int intensity, int label) {
+        int x0 = (int) Math.max(0, Math.floor(xc - radius)), x1 = (int) Math.min(ip.getWidth()-1, Math.ceil(xc + radius));
+        int y0 = (int) Math.max(0, Math.floor(yc - radius)), y1 = (int) Math.min(ip.getHeight()-1, Math.ceil(yc + radius));
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                if ((x-xc)*(x-xc) + (y-yc)*(y-yc) > radius*radius)
+                    continue;
+                ip.set(x, y, Math.min(65535, ip.get(x, y) + intensity));
+                if (labelIp != null)
+                    labelIp.set(x, y, label);
+            }
+        }
+    }
+}
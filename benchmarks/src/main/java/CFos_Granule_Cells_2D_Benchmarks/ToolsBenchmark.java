@@ -0,0 +1,113 @@
+package CFos_Granule_Cells_2D_Benchmarks;
+
+import CFos_Granule_Cells_2D_Tools.Detections2D;
+import CFos_Granule_Cells_2D_Tools.Tools;
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Hot paths of Tools on one synthetic ROI
+ * @author ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcfos.filterEngine=cpu", "-Xmx4g"})
+public class ToolsBenchmark {
+
+    // Default filtering parameters of the plugin
+    static final double MIN_CFOS_AREA = 20;
+    static final double MAX_CFOS_AREA = 80;
+    static final double CFOS_INTENSITY_THRESH = 250;
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"200", "1000"})
+    public double cfosPerMpx;
+
+    Tools tools;
+    SyntheticImages images;
+    Detections2D detections;
+    ImagePlus labelsCopy;
+    File outDir;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        images = new SyntheticImages(size, size, cfosPerMpx, 42);
+        tools = new Tools();
+        tools.cal = images.cal;
+        tools.pixArea = images.cal.pixelWidth * images.cal.pixelHeight;
+        detections = new Detections2D(images.labels.duplicate(), images.cfos);
+        outDir = Files.createTempDirectory("cfos-bench").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyLabels() {
+        labelsCopy = images.labels.duplicate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        detections.close();
+        FileUtils.deleteDirectory(outDir);
+    }
+
+
+    @Benchmark
+    public int nbNuclei() {
+        return(tools.getNbNuclei(images.nuclei, images.roi));
+    }
+
+    @Benchmark
+    public ImagePlus clearOutside() {
+        tools.clearOutside(labelsCopy, images.roi);
+        return(labelsCopy);
+    }
+
+    /**
+     * Measure all labels and filter them by size and intensity, as done on each Cellpose mask
+     */
+    @Benchmark
+    public int filterDetections() {
+        Detections2D d = new Detections2D(labelsCopy, images.cfos);
+        d.filter(MIN_CFOS_AREA/tools.pixArea, MAX_CFOS_AREA/tools.pixArea, CFOS_INTENSITY_THRESH);
+        return(d.size());
+    }
+
+    @Benchmark
+    public double roiArea() {
+        return(tools.roiArea(images.roi, images.cfos));
+    }
+
+    @Benchmark
+    public void drawResults() {
+        tools.drawResults(detections, images.cfos, "bench", outDir.getPath() + File.separator);
+    }
+
+    @Benchmark
+    public int labelsToPopulation() {
+        return(detections.toPopulation().getNbObjects());
+    }
+}
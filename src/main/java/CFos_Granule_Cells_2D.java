@@ -3,22 +3,21 @@
  * Author: ORION-CIRB
  */
 
+import CFos_Granule_Cells_2D_Tools.BatchScheduler;
+import CFos_Granule_Cells_2D_Tools.Dataset;
 import CFos_Granule_Cells_2D_Tools.Tools;
 import ij.*;
-import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.PlugIn;
-import ij.plugin.frame.RoiManager;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import mcib3d.geom2.Objects3DIntPopulation;
-import org.apache.commons.io.FilenameUtils;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
 
 
 public class CFos_Granule_Cells_2D implements PlugIn {
@@ -26,7 +25,6 @@ public class CFos_Granule_Cells_2D implements PlugIn {
     Tools tools = new Tools();
     private String imageDir = "";
     public String outDirResults = "";
-    private BufferedWriter outPutResults;
     
     public void run(String arg) {
         try {
@@ -39,22 +37,13 @@ public class CFos_Granule_Cells_2D implements PlugIn {
                 return;
             }
             
-            // Find images with nd extension
-            
-            ArrayList<String> imageFiles = new ArrayList();
-            tools.findImages(imageDir, "nd", imageFiles);
-            if (imageFiles == null) {
+            // Find images with nd extension, with all files of the tree listed in a single walk
+            Dataset dataset = Dataset.scan(imageDir, "nd");
+            if (dataset.images().isEmpty()) {
                 IJ.showMessage("Error", "No images found with nd extension");
                 return;
             }
             
-            // Determine if channels have tif or TIF extension
-            String fileExt = tools.findImageType(new File(imageDir));
-            if (imageFiles == null) {
-                IJ.showMessage("Error", "No channels found with tif or TIF extension");
-                return;
-            }
-            
             // Create output folder
             outDirResults = imageDir + File.separator + "Results" + File.separator;
             File outDir = new File(outDirResults);
@@ -62,20 +51,20 @@ public class CFos_Granule_Cells_2D implements PlugIn {
                 outDir.mkdir();
             }
             
-            // Write header in results file
-            String header = "Parent folder\tImage name\tROI name\tROI area (µm2)\tNb nuclei\tNb c-Fos cells\n";
-            FileWriter  fwResults = new FileWriter(outDirResults + "results.xls", false);
-            outPutResults = new BufferedWriter(fwResults);
-            outPutResults.write(header);
-            outPutResults.flush();
+            // Find calibration and channels of each image in its metadata
+            for (String error : Dataset.readMetadata(dataset.images(), tools))
+                IJ.log("Cannot read metadata of " + error);
             
-            // Find image calibration
-            tools.cal.pixelWidth = tools.cal.pixelHeight = 0.1625;
+            // Find image calibration, used for images without one in their metadata
+            Calibration cal = dataset.firstCalibration();
+            tools.cal.pixelWidth = tools.cal.pixelHeight = (cal != null) ? cal.pixelWidth : 0.1625;
             tools.cal.pixelDepth = 1;
             tools.pixArea = tools.cal.pixelWidth * tools.cal.pixelHeight * tools.cal.pixelDepth;
             
             // Find channels name
-            String[] channels = {"w1CSU_405_t1" , "w4CSU_642_t1"};
+            String[] channels = dataset.channels();
+            if (channels.length < tools.channelsName.length)
+                channels = new String[] {"w1CSU_405_t1" , "w4CSU_642_t1"};
             
             // Dialog box
             String[] chs = tools.dialog(channels);
@@ -84,70 +73,28 @@ public class CFos_Granule_Cells_2D implements PlugIn {
                 return;
             }
             
-            for (String f : imageFiles) {
-                String rootName = FilenameUtils.getBaseName(f);
-                String parentFolder = f.replace(imageDir, "").replace(FilenameUtils.getName(f), "");
-                tools.print("--- ANALYZING IMAGE " + parentFolder + rootName + " ------");
-                
-                // Find ROI(s)
-                String roiFile = imageDir+parentFolder+rootName+".roi";
-                if (!new File(roiFile).exists())
-                    roiFile = imageDir+parentFolder+rootName+".zip";
-                if (!new File(roiFile).exists()) {
-                    tools.print("ERROR: No ROI file found for image " + parentFolder + rootName);
-                    IJ.showMessage("Error", "No ROI file found for image " + parentFolder + rootName);
-                    continue;
-                }
-                
-                RoiManager rm = new RoiManager(false);
-                rm.runCommand("Open", roiFile);
-                Roi[] rois = rm.getRoisAsArray();
-                for (Roi roi : rois) {
-                    String roiName = roi.getName();
-                    tools.print("- Analyzing ROI " + roiName + " -");
-                    
-                    // Open Hoechst channel
-                    tools.print("Opening nuclei channel...");
-                    ImagePlus imgNuc = IJ.openImage(imageDir+parentFolder+rootName+"_"+chs[0]+"."+fileExt);
-                    imgNuc.setRoi(roi);
-                    ImagePlus imgNucCrop = imgNuc.crop();
-                    tools.flush_close(imgNuc);
-                    
-                    // Compute nuclei number
-                    tools.print("Counting nuclei...");
-                    int nbNuclei = tools.getNbNuclei(imgNucCrop, roi);
-                    System.out.println(nbNuclei + " nuclei found");
-                    
-                    // Open CFos channel
-                    tools.print("Opening c-Fos cells channel...");
-                    ImagePlus imgCFos = IJ.openImage(imageDir+parentFolder+rootName+"_"+chs[1]+"."+fileExt);
-                    imgCFos.setRoi(roi);
-                    ImagePlus imgCFosCrop = imgCFos.crop();
-                    tools.flush_close(imgCFos);
-                    
-                    // Detect c-Fos cells with Cellpose
-                    Objects3DIntPopulation cfosPop = tools.cellposeDetection(imgCFosCrop, roi);
-                    int nbCFos = cfosPop.getNbObjects();
-                    System.out.println(nbCFos+" c-Fos cells found");
-                    
-                    // Compute ROI area
-                    double roiArea = tools.roiArea(roi, imgCFosCrop);
-                    
-                    // Write results
-                    outPutResults.write(parentFolder.replace("/", "")+"\t"+rootName+"\t"+roiName+"\t"+roiArea+"\t"+nbNuclei+"\t"+nbCFos+"\n");
-                    outPutResults.flush();
-                    
-                    // Save images
-                    tools.drawResults(cfosPop, imgCFosCrop, parentFolder.replace("/", "_")+rootName+"_"+roiName, outDirResults);
-                    
-                    tools.flush_close(imgNucCrop);
-                    tools.flush_close(imgCFosCrop);
-                }
+            // Match images with their channels (tif or TIF) and ROI files, report missing files and replaced channels before starting
+            List<String> missing = dataset.resolve(chs);
+            List<Dataset.Image> images = dataset.completeImages();
+            if (!missing.isEmpty()) {
+                for (String m : missing)
+                    IJ.log("Missing file: " + m);
+                IJ.showMessage("Warning", "Some files are missing or channels were replaced by channels of same wavelength, "
+                        + (dataset.images().size() - images.size()) + " image(s) will be skipped, see Log window");
             }
-            outPutResults.close();
+            if (images.isEmpty()) {
+                IJ.showMessage("Error", "No image with channels and ROI files found");
+                return;
+            }
+            
+            // Load, nuclei counting and c-Fos detection of successive images run in parallel
+            // ROIs already analyzed with the same files and parameters are skipped when resuming
+            BatchScheduler.analyze(tools, outDirResults, chs, images);
             tools.print("--- All done! ---");
-        } catch (IOException ex) {
+        } catch (IOException | InterruptedException | DependencyException | ServiceException ex) {
             Logger.getLogger(CFos_Granule_Cells_2D.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            tools.closeCellposeWorker();
         }
     }
 }
@@ -0,0 +1,523 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import loci.formats.FormatException;
+
+
+/**
+ * Pipelined processing of a list of images, in three stages running in their own thread:
+ * 1. load ROIs and crop channels, channels of the next images being read ahead by prefetch threads
+ * 2. count nuclei
+ * 3. detect c-Fos cells with Cellpose, filter them and save overlays
+ * Stages are connected by bounded queues, and images only enter the pipeline when their
+ * estimated memory fits in the budget. Results are written by the calling thread, in input order.
+ * @author ORION-CIRB
+ */
+public class BatchScheduler {
+
+    // Estimated bytes per cropped pixel: nuclei and c-Fos 16-bit crops, Cellpose label image and resized copies
+    private static final int BYTES_PER_PIXEL = 8;
+    private static final int QUEUE_SIZE = 2;
+    private static final ImageJob END = new ImageJob(-1, null);
+
+    private final Tools tools;
+    private final String outDir;
+    private final Semaphore memory;
+    private final int budgetKB;
+    private ResultCache cache = null;
+    private String paramsHash = "";
+    private File metricsFile = null;
+    private int prefetchDepth = 2;
+    private final Metrics batchMetrics = new Metrics();
+
+
+    /**
+     * Image being processed, with everything computed so far
+     */
+    private static class ImageJob {
+        final int index;
+        final Dataset.Image image;
+        String parentFolder;
+        String rootName;
+        Roi[] rois = new Roi[0];
+        int[] roiIndex = new int[0];
+        RoiResult[] rows = new RoiResult[0];
+        boolean[] cached = new boolean[0];
+        String[] roiNames = new String[0];
+        String signature;
+        List<Rectangle> cropBounds = new ArrayList<>();
+        List<ImagePlus> nucCrops = new ArrayList<>();
+        List<ImagePlus> cfosCrops = new ArrayList<>();
+        List<Integer> nbNuclei = new ArrayList<>();
+        List<Detections2D> cfosDetections = new ArrayList<>();
+        int reservedKB = 0;
+        String error = null;
+        final Metrics metrics = new Metrics();
+
+        ImageJob(int index, Dataset.Image image) {
+            this.index = index;
+            this.image = image;
+        }
+    }
+
+
+    public BatchScheduler(Tools tools, String outDir, int memoryBudgetMB) {
+        this.tools = tools;
+        this.outDir = outDir;
+        this.budgetKB = Math.max(1, memoryBudgetMB) * 1024;
+        this.memory = new Semaphore(budgetKB);
+    }
+
+
+    /**
+     * Analyze images and write results tables, overlays, manifest and metrics in outDir
+     * Results tables are written under temp names and only renamed once all images are done,
+     * a failed run leaves no table (the manifest is used to resume)
+     */
+    public static void analyze(Tools tools, String outDir, String[] chs, List<Dataset.Image> images) throws IOException, InterruptedException {
+        analyze(tools, outDir, chs, images, false);
+    }
+
+
+    /**
+     * Same as above, a shard also writes the order of its rows (see Shards.merge)
+     */
+    public static void analyze(Tools tools, String outDir, String[] chs, List<Dataset.Image> images, boolean shard) throws IOException, InterruptedException {
+        List<ResultSink> sinks = new ArrayList<>();
+        ResultCache cache = null;
+        try {
+            sinks.add(new TsvResultSink(new File(outDir, "results.xls")));
+            sinks.add(new ObjectsTsvResultSink(new File(outDir, "objects.xls")));
+            if (tools.exportColumnar)
+                sinks.add(new ColumnarResultSink(new File(outDir)));
+            if (shard)
+                sinks.add(new ShardOrderSink(new File(outDir, Shards.ROWS)));
+            cache = new ResultCache(outDir, tools.resumeRun);
+            BatchScheduler scheduler = new BatchScheduler(tools, outDir, tools.memoryBudgetMB);
+            scheduler.setResultCache(cache, ResultCache.hash(tools.parametersDescription(chs)));
+            scheduler.setMetricsFile(new File(outDir, "metrics.tsv"));
+            scheduler.setPrefetchDepth(tools.prefetchDepth);
+            scheduler.run(images, sinks);
+            for (ResultSink sink : sinks)
+                sink.commit();
+        } finally {
+            if (cache != null)
+                cache.close();
+            for (ResultSink sink : sinks)
+                sink.close();
+        }
+    }
+
+
+    /**
+     * Skip ROIs already in the cache with unchanged files and parameters, and record new ones
+     */
+    public void setResultCache(ResultCache cache, String paramsHash) {
+        this.cache = cache;
+        this.paramsHash = paramsHash;
+    }
+
+
+    /**
+     * Number of images whose channels are read ahead in parallel, within the memory budget
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = Math.max(1, prefetchDepth);
+    }
+
+
+    /**
+     * Write stage timers and counters of each image and of the whole batch to a tab-separated file
+     */
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+
+    /**
+     * Timers and counters of the whole batch, complete once run() returned
+     */
+    public Metrics getBatchMetrics() {
+        return(batchMetrics);
+    }
+
+
+    /**
+     * Process all images, resolved with their channel and ROI files, and write the results of each ROI to all sinks
+     */
+    public void run(List<Dataset.Image> images, List<ResultSink> sinks) throws IOException, InterruptedException {
+        BlockingQueue<ImageJob> loaded = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<ImageJob> counted = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<ImageJob> done = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        // Error outside of any image, stopping a stage early: the batch fails instead of ending with missing images
+        AtomicReference<Throwable> stageError = new AtomicReference<>();
+
+        // Images are prepared in order, then their channels are read by prefetch threads up to prefetchDepth images ahead
+        ExecutorService prefetcher = Executors.newFixedThreadPool(prefetchDepth, r -> {
+            Thread thread = new Thread(r, "cfos-prefetch");
+            thread.setDaemon(true);
+            return(thread);
+        });
+        Thread loader = new Thread(() -> {
+            Deque<CompletableFuture<ImageJob>> pending = new ArrayDeque<>();
+            try {
+                for (int i = 0; i < images.size(); i++) {
+                    ImageJob job = new ImageJob(i, images.get(i));
+                    try {
+                        prepareImage(job);
+                    } catch (Throwable e) {
+                        fail(job, e);
+                    }
+                    // Memory of pending images is only released once written, so hand them over while waiting for it
+                    while (!memory.tryAcquire(job.reservedKB)) {
+                        if (pending.isEmpty()) {
+                            memory.acquire(job.reservedKB);
+                            break;
+                        }
+                        loaded.put(pending.poll().join());
+                    }
+                    pending.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            readChannels(job);
+                        } catch (Throwable e) {
+                            fail(job, e);
+                        }
+                        return(job);
+                    }, prefetcher));
+                    if (pending.size() >= prefetchDepth)
+                        loaded.put(pending.poll().join());
+                }
+                while (!pending.isEmpty())
+                    loaded.put(pending.poll().join());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                stageError.compareAndSet(null, e);
+            } finally {
+                sendEnd(loaded);
+            }
+        }, "cfos-load");
+
+        Thread nucleiCounter = new Thread(() -> {
+            try {
+                for (ImageJob job = loaded.take(); job != END; job = loaded.take()) {
+                    try {
+                        countNuclei(job);
+                    } catch (Throwable e) {
+                        fail(job, e);
+                    }
+                    counted.put(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                stageError.compareAndSet(null, e);
+            } finally {
+                sendEnd(counted);
+            }
+        }, "cfos-nuclei");
+
+        Thread cfosDetector = new Thread(() -> {
+            try {
+                for (ImageJob job = counted.take(); job != END; job = counted.take()) {
+                    try {
+                        detectCFos(job);
+                    } catch (Throwable e) {
+                        fail(job, e);
+                    }
+                    done.put(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                stageError.compareAndSet(null, e);
+            } finally {
+                sendEnd(done);
+            }
+        }, "cfos-cellpose");
+
+        Metrics.resetPoolsPeakHeap();
+        long batchStart = Metrics.start();
+        BufferedWriter metricsWriter = null;
+        if (metricsFile != null) {
+            metricsWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(metricsFile), StandardCharsets.UTF_8));
+            metricsWriter.write(Metrics.HEADER + "\n");
+        }
+        loader.start();
+        nucleiCounter.start();
+        cfosDetector.start();
+        try {
+            for (ImageJob job = done.take(); job != END; job = done.take()) {
+                if (job.error != null) {
+                    tools.print("ERROR: " + job.error);
+                    if (!GraphicsEnvironment.isHeadless())
+                        IJ.showMessage("Error", job.error);
+                }
+                long t = Metrics.start();
+                for (int r = 0; r < job.rows.length; r++) {
+                    if (job.rows[r] == null)
+                        continue;
+                    job.rows[r].imagePath = job.parentFolder + new File(job.image.file).getName();
+                    for (ResultSink sink : sinks)
+                        sink.write(job.rows[r]);
+                    if (cache != null && !job.cached[r])
+                        cache.put(job.parentFolder+job.rootName, job.roiNames[r], job.signature, paramsHash, job.rows[r].toCacheRow());
+                }
+                job.metrics.stop(Metrics.RESULT_WRITE, t);
+                memory.release(job.reservedKB);
+
+                batchMetrics.merge(job.metrics);
+                if (metricsWriter != null) {
+                    job.metrics.write(metricsWriter, job.parentFolder+job.rootName);
+                    metricsWriter.flush();
+                }
+            }
+            if (stageError.get() != null)
+                throw new IOException("Batch stopped before all images were analyzed", stageError.get());
+            batchMetrics.stop("batch", batchStart);
+            batchMetrics.samplePoolsPeakHeap();
+            if (metricsWriter != null)
+                batchMetrics.write(metricsWriter, "batch");
+            tools.print("Time per stage (summed over images, stages run in parallel):\n" + batchMetrics.summary());
+        } finally {
+            loader.interrupt();
+            prefetcher.shutdownNow();
+            nucleiCounter.interrupt();
+            cfosDetector.interrupt();
+            if (metricsWriter != null)
+                metricsWriter.close();
+        }
+        cfosDetector.join();
+    }
+
+
+    /**
+     * Stage 1a, in input order: read ROIs, skip those already analyzed and estimate the memory of the crops
+     * Memory is estimated from ROI bounding boxes, an upper bound of the crops size known before opening channels
+     */
+    private void prepareImage(ImageJob job) {
+        job.rootName = job.image.rootName;
+        job.parentFolder = job.image.parentFolder;
+        tools.print("--- LOADING IMAGE " + job.parentFolder + job.rootName + " ------");
+
+        // Files were found when indexing the dataset
+        if (!job.image.isComplete()) {
+            job.error = "Missing channel or ROI file for image " + job.parentFolder + job.rootName;
+            return;
+        }
+        String roiFile = job.image.roiFile;
+        String nucFile = job.image.channelFiles[0];
+        String cfosFile = job.image.channelFiles[1];
+        Roi[] allRois;
+        try {
+            allRois = RoiFiles.read(roiFile);
+        } catch (IOException e) {
+            job.error = "Cannot read ROI file of image " + job.parentFolder + job.rootName + ": " + e.getMessage();
+            return;
+        }
+        // Reuse results of ROIs analyzed in a previous run, if files, parameters and overlay are unchanged
+        // Calibration read in metadata is part of the signature, so that a changed pixel size invalidates results
+        job.signature = ResultCache.filesSignature(nucFile, cfosFile, roiFile) + tools.calibration(job.image).pixelWidth;
+        job.rows = new RoiResult[allRois.length];
+        job.cached = new boolean[allRois.length];
+        job.roiNames = new String[allRois.length];
+        ArrayList<Integer> toAnalyze = new ArrayList<>();
+        for (int r = 0; r < allRois.length; r++) {
+            job.roiNames[r] = allRois[r].getName();
+            String row = (cache == null) ? null : cache.get(job.parentFolder+job.rootName, job.roiNames[r], job.signature, paramsHash);
+            RoiResult result = (row == null) ? null : RoiResult.fromRow(row);
+            // Rows cached without their objects are analyzed again, so that objects tables stay complete
+            if (result != null && result.hasObjects() && new File(outDir + overlayName(job, job.roiNames[r]) + ".tif").exists()) {
+                job.rows[r] = result;
+                job.cached[r] = true;
+            } else {
+                toAnalyze.add(r);
+            }
+        }
+        job.roiIndex = toAnalyze.stream().mapToInt(Integer::intValue).toArray();
+        job.rois = new Roi[job.roiIndex.length];
+        for (int r = 0; r < job.roiIndex.length; r++)
+            job.rois[r] = allRois[job.roiIndex[r]];
+        if (job.rois.length == 0) {
+            tools.print("All ROIs of image " + job.parentFolder + job.rootName + " already analyzed");
+            return;
+        }
+
+        long bytes = 0;
+        for (Roi roi : job.rois) {
+            Rectangle box = roi.getBounds();
+            bytes += (long) box.width * box.height * BYTES_PER_PIXEL;
+        }
+        // An image larger than the whole budget is processed alone
+        job.reservedKB = (int) Math.min(budgetKB, Math.max(1, bytes / 1024));
+    }
+
+
+    /**
+     * Stage 1b, in a prefetch thread: crop both channels
+     * Channels are opened once for all ROIs, only the ROI bounding boxes are decoded
+     */
+    private void readChannels(ImageJob job) {
+        if (job.error != null || job.rois.length == 0)
+            return;
+        long t = Metrics.start();
+        try (ChannelReader nucReader = new ChannelReader(job.image.channelFiles[0]);
+             ChannelReader cfosReader = new ChannelReader(job.image.channelFiles[1])) {
+            job.metrics.stop(Metrics.CHANNEL_OPEN, t);
+
+            t = Metrics.start();
+            Calibration cal = tools.calibration(job.image);
+            for (Roi roi : job.rois) {
+                job.cropBounds.add(nucReader.cropBounds(roi));
+                job.nucCrops.add(nucReader.readCrop(roi));
+                job.cfosCrops.add(cfosReader.readCrop(roi));
+                job.nucCrops.get(job.nucCrops.size()-1).setCalibration(cal);
+                job.cfosCrops.get(job.cfosCrops.size()-1).setCalibration(cal);
+            }
+            job.metrics.stop(Metrics.CROP, t);
+            for (int r = 0; r < job.rois.length; r++)
+                job.metrics.add(Metrics.CROP_BYTES, cropBytes(job.nucCrops.get(r)) + cropBytes(job.cfosCrops.get(r)));
+            job.metrics.add(Metrics.BYTES_READ, nucReader.getBytesRead() + cfosReader.getBytesRead());
+            job.metrics.sampleHeap();
+        } catch (IOException | FormatException e) {
+            job.error = "Cannot read channels of image " + job.parentFolder + job.rootName + ": " + e.getMessage();
+            closeCrops(job);
+        }
+    }
+
+
+    /**
+     * Stage 2: count nuclei in each ROI
+     */
+    private void countNuclei(ImageJob job) {
+        if (job.error != null || job.rois.length == 0)
+            return;
+        for (int r = 0; r < job.rois.length; r++) {
+            tools.print("Counting nuclei in image " + job.parentFolder + job.rootName + ", ROI " + job.rois[r].getName() + "...");
+            long t = Metrics.start();
+            job.nbNuclei.add(tools.getNbNuclei(job.nucCrops.get(r), job.rois[r]));
+            job.metrics.stop(Metrics.NUCLEI_FILTERING, t);
+            System.out.println(job.nbNuclei.get(r) + " nuclei found");
+            tools.flush_close(job.nucCrops.get(r));
+        }
+        job.nucCrops.clear();
+    }
+
+
+    /**
+     * Stage 3: detect c-Fos cells in all ROIs of the image with a single Cellpose run,
+     * then save overlays and measure ROIs and cells
+     */
+    private void detectCFos(ImageJob job) {
+        if (job.error != null || job.rois.length == 0)
+            return;
+        // Cellpose and filtering timers recorded by Tools go to this image
+        Metrics.bind(job.metrics);
+        try {
+            tools.print("Detecting c-Fos cells in image " + job.parentFolder + job.rootName + " (" + job.rois.length + " ROI(s))...");
+            job.cfosDetections = tools.cellposeDetection(job.cfosCrops, Arrays.asList(job.rois));
+            job.metrics.sampleHeap();
+            for (int r = 0; r < job.rois.length; r++) {
+                Roi roi = job.rois[r];
+                String roiName = roi.getName();
+                ImagePlus imgCFosCrop = job.cfosCrops.get(r);
+                Detections2D cfosDetections = job.cfosDetections.get(r);
+                int nbCFos = cfosDetections.size();
+                System.out.println(nbCFos+" c-Fos cells found in ROI " + roiName);
+
+                // Compute ROI area
+                double roiArea = tools.roiArea(roi, imgCFosCrop);
+                RoiResult result = new RoiResult(job.parentFolder.replace("/", ""), job.rootName, roiName, roiArea, job.nbNuclei.get(r), nbCFos);
+                result.setObjects(cfosDetections, job.cropBounds.get(r), tools.calibration(imgCFosCrop));
+                job.rows[job.roiIndex[r]] = result;
+                job.metrics.add(Metrics.ROIS, 1);
+                job.metrics.add(Metrics.CELLS, nbCFos);
+
+                // Save images
+                long t = Metrics.start();
+                tools.drawResults(cfosDetections, imgCFosCrop, overlayName(job, roiName), outDir);
+                job.metrics.stop(Metrics.OVERLAY_SAVE, t);
+                job.metrics.add(Metrics.BYTES_WRITTEN, new File(outDir + overlayName(job, roiName) + ".tif").length());
+            }
+        } catch (IOException e) {
+            job.error = "c-Fos cells detection failed for image " + job.parentFolder + job.rootName + ": " + e.getMessage();
+        } finally {
+            Metrics.bind(null);
+        }
+        closeCrops(job);
+    }
+
+
+    private static long cropBytes(ImagePlus img) {
+        return((long) img.getWidth() * img.getHeight() * img.getBytesPerPixel());
+    }
+
+
+    /**
+     * Name of the overlay image saved for a ROI
+     */
+    private String overlayName(ImageJob job, String roiName) {
+        return(job.parentFolder.replace("/", "_")+job.rootName+"_"+roiName);
+    }
+    
+    
+    /**
+     * Tell the next stage that no more image will come, so that it always ends, unless the batch is being stopped
+     */
+    private static void sendEnd(BlockingQueue<ImageJob> queue) {
+        if (Thread.currentThread().isInterrupted())
+            return;
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    /**
+     * Keep the pipeline running when an image fails, the error is reported by the writer
+     * Any error of an image, including Errors such as OutOfMemoryError, only fails this image
+     */
+    private void fail(ImageJob job, Throwable e) {
+        e.printStackTrace();
+        job.error = "Analysis failed for image " + job.parentFolder + job.rootName + ": " + e;
+        closeCrops(job);
+    }
+    
+    
+    private void closeCrops(ImageJob job) {
+        for (ImagePlus img : job.nucCrops)
+            tools.flush_close(img);
+        for (ImagePlus img : job.cfosCrops)
+            tools.flush_close(img);
+        for (Detections2D detections : job.cfosDetections)
+            detections.close();
+        job.nucCrops.clear();
+        job.cfosCrops.clear();
+        job.cfosDetections.clear();
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -18,6 +19,46 @@ import CFos_Granule_Cells_2D_Tools.Cellpose.CellposeTaskSettings;
 
 public class Cellpose {
 
+    /**
+     * Create a unique scratch folder for one Cellpose task in the settings temp folder,
+     * so that several tasks can run at the same time
+     */
+    static File createScratchDir(CellposeTaskSettings settings, String prefix) throws IOException {
+        File tempDir = new File(settings.tempDir);
+        tempDir.mkdirs();
+        return Files.createTempDirectory(tempDir.toPath(), prefix).toFile();
+    }
+
+    /**
+     * Delete a scratch folder and everything in it
+     */
+    static void deleteScratchDir(File dir) {
+        if (dir == null)
+            return;
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                if (f.isDirectory())
+                    deleteScratchDir(f);
+                else
+                    f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Path of the python executable of the Cellpose environment
+     */
+    static String pythonPath(CellposeTaskSettings settings) {
+        if (IJ.isWindows()) {
+            if (settings.envType.equals("venv"))
+                return new File(settings.cellposeEnvDirectory, "Scripts"+separatorChar+"python.exe").toString();
+            return new File(settings.cellposeEnvDirectory, "python.exe").toString();
+        }
+        return settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
+    }
+
     static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
@@ -0,0 +1,163 @@
+package CFos_Granule_Cells_2D_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of Cellpose label masks
+ * Masks are keyed by a hash of the input pixels and of the settings affecting Cellpose output,
+ * so that post-filtering parameters can be tuned without running Cellpose again
+ * Least recently used masks are evicted when the cache grows over its maximum size, down to 90% of it
+ * The cache size is tracked by a counter, the folder being only listed to evict and every RESCAN_PUTS masks,
+ * as other processes (e.g. shards of a headless run) may share the cache
+ */
+public class CellposeMaskCache {
+
+    private static final String EXT = ".mask";
+    private static final int RESCAN_PUTS = 100;
+
+    File cacheDir;
+    long maxBytes;
+    // Estimated size of the cache folder, -1 until listed
+    private long cacheBytes = -1;
+    private int putsSinceScan = 0;
+
+    public CellposeMaskCache(File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        cacheDir.mkdirs();
+    }
+
+
+    /**
+     * SHA-256 of the image pixels and of the settings affecting Cellpose masks
+     */
+    public static String key(ImagePlus imp, CellposeTaskSettings settings) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            String settingsDesc = settings.model + ";" + settings.ch1 + ";" + settings.ch2 + ";" + settings.diameter + ";"
+                    + settings.flow_threshold + ";" + settings.cellprob_threshold + ";" + settings.stitch_threshold + ";"
+                    + settings.version + ";" + settings.use3D + ";" + settings.useFastMode + ";" + settings.useResample + ";"
+                    + settings.omni + ";" + settings.cluster + ";" + imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getBitDepth();
+            md.update(settingsDesc.getBytes("UTF-8"));
+
+            ImageProcessor ip = imp.getProcessor();
+            Object pixels = ip.getPixels();
+            if (pixels instanceof byte[]) {
+                md.update((byte[]) pixels);
+            } else if (pixels instanceof short[]) {
+                ByteBuffer buf = ByteBuffer.allocate(2*ip.getPixelCount()).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asShortBuffer().put((short[]) pixels);
+                md.update(buf.array());
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate(4*ip.getPixelCount()).order(ByteOrder.LITTLE_ENDIAN);
+                if (pixels instanceof float[])
+                    buf.asFloatBuffer().put((float[]) pixels);
+                else
+                    buf.asIntBuffer().put((int[]) pixels);
+                md.update(buf.array());
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Cached mask, or null if not in cache
+     */
+    public synchronized ImagePlus get(String key) {
+        File file = new File(cacheDir, key + EXT);
+        if (!file.exists())
+            return null;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            int width = buf.getInt();
+            int height = buf.getInt();
+            short[] labels = new short[width*height];
+            buf.asShortBuffer().get(labels);
+            // Mark as recently used
+            file.setLastModified(System.currentTimeMillis());
+            return new ImagePlus(key + "-cellpose", new ShortProcessor(width, height, labels, null));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("WARNING: Cannot read cached Cellpose mask " + file + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+
+    /**
+     * Save a 16-bit mask, then evict least recently used masks if the cache is too large
+     */
+    public synchronized void put(String key, ImagePlus mask) {
+        ImageProcessor ip = mask.getProcessor();
+        if (!(ip instanceof ShortProcessor))
+            ip = ip.convertToShort(false);
+        ByteBuffer buf = ByteBuffer.allocate(8 + 2*ip.getPixelCount()).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(ip.getWidth()).putInt(ip.getHeight());
+        buf.asShortBuffer().put((short[]) ip.getPixels());
+
+        // Written under a unique temp name then renamed, so that a crash never leaves a truncated mask
+        // and processes sharing the cache don't write in the same temp file
+        File file = new File(cacheDir, key + EXT);
+        long previousBytes = file.length();
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(cacheDir.toPath(), key, EXT + ".tmp");
+            Files.write(tmp, buf.array());
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("WARNING: Cannot cache Cellpose mask: " + e.getMessage());
+            if (tmp != null)
+                tmp.toFile().delete();
+            return;
+        }
+
+        if (cacheBytes >= 0)
+            cacheBytes += buf.capacity() - previousBytes;
+        if (cacheBytes < 0 || cacheBytes > maxBytes || ++putsSinceScan >= RESCAN_PUTS)
+            evict();
+    }
+
+
+    /**
+     * List cached masks to update the cache size, and delete least recently used ones if it is over maxBytes
+     */
+    private void evict() {
+        putsSinceScan = 0;
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(EXT));
+        if (files == null)
+            return;
+        long size = 0;
+        for (File f : files)
+            size += f.length();
+        if (size > maxBytes) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File f : files) {
+                if (size <= maxBytes*0.9)
+                    break;
+                size -= f.length();
+                f.delete();
+            }
+        }
+        cacheBytes = size;
+    }
+}
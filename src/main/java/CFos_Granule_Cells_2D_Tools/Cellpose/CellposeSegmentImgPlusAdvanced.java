@@ -35,23 +35,6 @@ public class CellposeSegmentImgPlusAdvanced {
         
         Calibration cal = imp.getCalibration();
 
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
-        }
-
-        // Add temp folder to the settings
-        settings.setDatasetDir(cellposeTempDir.toString());
-
-
         if (settings.use3D == true) {
             if (imp.getNSlices() == 1) 
                 System.out.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
@@ -62,14 +45,17 @@ public class CellposeSegmentImgPlusAdvanced {
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
         
+        // Each task gets its own temp folder, so that concurrent tasks don't overwrite each other's files
+        File cellposeTempDir = null;
         try {
+            cellposeTempDir = Cellpose.createScratchDir(settings, "cellposeTemp");
+            settings.setDatasetDir(cellposeTempDir.toString());
+
             // Can't process time-lapse directly, so we'll save one time-point after another
             int impFrames = imp.getNFrames();
 
-            // We'll use lists to store paths of saved input, output masks and outlines
-            List<File> t_imp_paths = new ArrayList<>();
+            // We'll use a list to store paths of output masks
             List<File> cellpose_masks_paths = new ArrayList<>();
-            List<File> cellpose_outlines_paths = new ArrayList<>();
 
             for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
                 // Duplicate all channels and all z-slices for a defined time-point
@@ -79,16 +65,13 @@ public class CellposeSegmentImgPlusAdvanced {
                 FileSaver fs = new FileSaver(t_imp);
                 fs.saveAsTiff(t_imp_path.toString());
                 System.out.println(t_imp_path.toString());
-                // Add to list of paths to delete at the end of operations
-                t_imp_paths.add(t_imp_path);
 
                 // Prepare path of the cellpose mask output
                 File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
                 cellpose_masks_paths.add(cellpose_imp_path);
-                // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej), so we'll delete it too
+                // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej),
+                // it is deleted with the temp folder
                 // (to generate ROIs from the label image we can use https://github.com/BIOP/ijp-larome)
-                File cellpose_outlines_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_outlines" + ".txt");
-                cellpose_outlines_paths.add(cellpose_outlines_path);
             }
 
             // Run CellPose
@@ -116,16 +99,11 @@ public class CellposeSegmentImgPlusAdvanced {
             cellpose_imp.setCalibration(cal);
             cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
 
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
-            }
-            cellposeTempDir.delete();
-       
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // Delete the created files and folder
+            Cellpose.deleteScratchDir(cellposeTempDir);
         }
         return cellpose_imp;
     }
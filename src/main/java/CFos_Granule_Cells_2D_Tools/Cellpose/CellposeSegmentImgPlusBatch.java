@@ -0,0 +1,73 @@
+package CFos_Granule_Cells_2D_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segment a list of 2D images with a single Cellpose run
+ * All images are saved in the same dataset folder, so the model is loaded once for the whole batch
+ */
+public class CellposeSegmentImgPlusBatch {
+
+    CellposeTaskSettings settings;
+    List<ImagePlus> imps;
+
+    public CellposeSegmentImgPlusBatch(CellposeTaskSettings settings, List<ImagePlus> imps) {
+        this.settings = settings;
+        this.imps = imps;
+    }
+
+    /**
+     * Return the 16-bit masks keyed by input image, in input order
+     */
+    public Map<ImagePlus, ImagePlus> run() {
+        Map<ImagePlus, ImagePlus> masks = new LinkedHashMap<>();
+
+        settings.use3D(false);
+
+        CellposeTask cellposeTask = new CellposeTask();
+        cellposeTask.setSettings(settings);
+
+        // Each batch gets its own temp folder, so that concurrent batches don't overwrite each other's files
+        File cellposeTempDir = null;
+        try {
+            cellposeTempDir = Cellpose.createScratchDir(settings, "cellposeBatch");
+            settings.setDatasetDir(cellposeTempDir.toString());
+
+            // Images can come from different files and share titles, so name them by index
+            List<File> cellpose_masks_paths = new ArrayList<>();
+            for (int i = 0; i < imps.size(); i++) {
+                File imp_path = new File(cellposeTempDir, "crop" + i + ".tif");
+                new FileSaver(imps.get(i)).saveAsTiff(imp_path.toString());
+                cellpose_masks_paths.add(new File(cellposeTempDir, "crop" + i + "_cp_masks.tif"));
+            }
+
+            // Run CellPose once on the whole folder
+            cellposeTask.run();
+
+            for (int i = 0; i < imps.size(); i++) {
+                ImagePlus imp = imps.get(i);
+                ImagePlus cellpose_imp = IJ.openImage(cellpose_masks_paths.get(i).toString());
+                if (cellpose_imp.getBitDepth() != 16)
+                    cellpose_imp.setProcessor(cellpose_imp.getProcessor().convertToShort(false));
+                cellpose_imp.setCalibration(imp.getCalibration());
+                cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
+                masks.put(imp, cellpose_imp);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // Delete the created files and folder
+            Cellpose.deleteScratchDir(cellposeTempDir);
+        }
+        return masks;
+    }
+}
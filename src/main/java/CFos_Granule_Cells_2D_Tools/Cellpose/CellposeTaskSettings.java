@@ -15,6 +15,7 @@ public class CellposeTaskSettings {
     double stitch_threshold = -1;
    
     String cellposeEnvDirectory;
+    String tempDir = System.getProperty("cellpose.tempDir", System.getProperty("java.io.tmpdir"));
     String envType = "conda";
     String version = "2.0";
     boolean use3D = false;
@@ -38,6 +39,11 @@ public class CellposeTaskSettings {
         return this;
     }
 
+    public CellposeTaskSettings setTempDir(String tempDir) {
+        this.tempDir = tempDir;
+        return this;
+    }
+
     public CellposeTaskSettings setModel(String model) {
         this.model = model;
         return this;
@@ -0,0 +1,185 @@
+package CFos_Granule_Cells_2D_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Long-lived Cellpose process
+ * The python interpreter, torch and the model weights are loaded once at start,
+ * then images are segmented one after another
+ * Pixels and labels are sent as raw little-endian buffers over stdin/stdout (see cellpose_worker.py),
+ * so no TIFF is written or read and no outline is computed
+ */
+public class CellposeWorker implements Closeable {
+
+    CellposeTaskSettings settings;
+    Process process;
+    OutputStream toWorker;
+    DataInputStream fromWorker;
+    File workDir;
+
+    public CellposeWorker(CellposeTaskSettings settings) {
+        this.settings = settings;
+    }
+
+
+    /**
+     * Start the python process and wait for the model to be loaded
+     */
+    public void start() throws IOException {
+        workDir = Cellpose.createScratchDir(settings, "cellposeWorker");
+        File script = new File(workDir, "cellpose_worker.py");
+        try (InputStream in = getClass().getResourceAsStream("/cellpose_worker.py")) {
+            Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        List<String> cmd = new ArrayList<>(Arrays.asList(Cellpose.pythonPath(settings), "-u", script.toString()));
+        cmd.add("--pretrained_model");
+        cmd.add("" + settings.model);
+        cmd.add("--chan");
+        cmd.add("" + settings.ch1);
+        if (settings.ch2 > -1) {
+            cmd.add("--chan2");
+            cmd.add("" + settings.ch2);
+        }
+        cmd.add("--diameter");
+        cmd.add("" + settings.diameter);
+        cmd.add("--flow_threshold");
+        cmd.add("" + settings.flow_threshold);
+        cmd.add("--cellprob_threshold");
+        cmd.add("" + settings.cellprob_threshold);
+        if (settings.useGpu)
+            cmd.add("--use_gpu");
+        System.out.println(cmd.toString().replace(",", ""));
+
+        process = new ProcessBuilder(cmd).start();
+        toWorker = new BufferedOutputStream(process.getOutputStream(), 1 << 16);
+        fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16));
+
+        // Cellpose logs are sent to stderr, print them in the console
+        Thread t = new Thread(Thread.currentThread().getName() + "-" + process.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                try {
+                    for (String line = stdErr.readLine(); line != null; line = stdErr.readLine())
+                        System.out.println(line);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        byte[] magic = new byte[4];
+        try {
+            fromWorker.readFully(magic);
+        } catch (IOException e) {
+            magic = new byte[0];
+        }
+        if (!new String(magic, StandardCharsets.US_ASCII).equals("CPWK")) {
+            close();
+            throw new IOException("Cellpose worker " + settings.cellposeEnvDirectory + " failed to start. Please check output above for indications of the problem.");
+        }
+        System.out.println("Cellpose worker ready with model " + settings.model);
+    }
+
+
+    /**
+     * Segment a 2D image, return the masks as a 16-bit label image
+     */
+    public ImagePlus run(ImagePlus imp) throws IOException {
+        ImageProcessor ip = imp.getProcessor();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int n = width*height;
+
+        // Request: header and raw pixels
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer pixels;
+        switch (imp.getBitDepth()) {
+            case 8 :
+                header.putInt(width).putInt(height).putInt(1);
+                pixels = ByteBuffer.wrap((byte[]) ip.getPixels());
+                break;
+            case 16 :
+                header.putInt(width).putInt(height).putInt(2);
+                pixels = ByteBuffer.allocate(2*n).order(ByteOrder.LITTLE_ENDIAN);
+                pixels.asShortBuffer().put((short[]) ip.getPixels());
+                break;
+            default :
+                header.putInt(width).putInt(height).putInt(4);
+                pixels = ByteBuffer.allocate(4*n).order(ByteOrder.LITTLE_ENDIAN);
+                pixels.asFloatBuffer().put((float[]) ip.convertToFloatProcessor().getPixels());
+        }
+        toWorker.write(header.array());
+        toWorker.write(pixels.array());
+        toWorker.flush();
+
+        // Reply: status, then labels or error message
+        try {
+            if (readInt() != 0) {
+                byte[] msg = new byte[readInt()];
+                fromWorker.readFully(msg);
+                throw new IOException("Cellpose worker failed: " + new String(msg, StandardCharsets.UTF_8));
+            }
+            int maskWidth = readInt();
+            int maskHeight = readInt();
+            byte[] labels = new byte[2*maskWidth*maskHeight];
+            fromWorker.readFully(labels);
+            short[] maskPixels = new short[maskWidth*maskHeight];
+            ByteBuffer.wrap(labels).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(maskPixels);
+
+            ImagePlus mask = new ImagePlus(imp.getShortTitle() + "-cellpose", new ShortProcessor(maskWidth, maskHeight, maskPixels, null));
+            mask.setCalibration(imp.getCalibration());
+            return mask;
+        } catch (EOFException e) {
+            throw new IOException("Cellpose worker exited unexpectedly");
+        }
+    }
+
+
+    private int readInt() throws IOException {
+        return Integer.reverseBytes(fromWorker.readInt());
+    }
+
+
+    /**
+     * Stop the python process and remove its working directory
+     */
+    @Override
+    public void close() {
+        if (process != null && process.isAlive()) {
+            try {
+                toWorker.write(new byte[12]);
+                toWorker.flush();
+                process.waitFor();
+            } catch (IOException | InterruptedException e) {
+                process.destroy();
+            }
+        }
+        Cellpose.deleteScratchDir(workDir);
+        workDir = null;
+    }
+}
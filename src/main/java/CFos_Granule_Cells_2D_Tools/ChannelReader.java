@@ -0,0 +1,88 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Read ROI regions of a channel image
+ * Uncompressed TIFF files are mapped in memory (see MappedTiffReader), other files are read with Bio-Formats
+ * Only the pixels inside the ROI bounding box are decoded,
+ * so the file is parsed once per image and not once per ROI
+ * Mapped reading can be turned off with -Dcfos.mappedTiff=false
+ * @author ORION-CIRB
+ */
+public class ChannelReader implements Closeable {
+
+    private final String file;
+    // Exactly one of them is open
+    private MappedTiffReader mapped;
+    private ImageProcessorReader reader;
+    private long bytesRead;
+
+
+    public ChannelReader(String file) throws FormatException, IOException {
+        this.file = file;
+        if (Boolean.parseBoolean(System.getProperty("cfos.mappedTiff", "true")))
+            mapped = MappedTiffReader.open(file);
+        if (mapped == null) {
+            reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+            // Read this file only, a MetaMorph TIFF would otherwise be opened as the whole .nd dataset
+            reader.setGroupFiles(false);
+            reader.setId(file);
+        }
+    }
+
+
+    /**
+     * Get the region of the image frame covered by the ROI bounding box
+     */
+    public Rectangle cropBounds(Roi roi) {
+        Rectangle frame = (mapped != null) ? new Rectangle(0, 0, mapped.getWidth(), mapped.getHeight())
+                : new Rectangle(0, 0, reader.getSizeX(), reader.getSizeY());
+        return(roi.getBounds().intersection(frame));
+    }
+
+
+    /**
+     * Read the ROI bounding box of the first plane
+     */
+    public ImagePlus readCrop(Roi roi) throws FormatException, IOException {
+        Rectangle box = cropBounds(roi);
+        ImageProcessor ip;
+        if (mapped != null)
+            ip = mapped.readRegion(box);
+        else {
+            ip = reader.openProcessors(0, box.x, box.y, box.width, box.height)[0];
+            bytesRead += (long) box.width * box.height * FormatTools.getBytesPerPixel(reader.getPixelType());
+        }
+        return(new ImagePlus(FilenameUtils.getBaseName(file), ip));
+    }
+
+
+    /**
+     * Bytes read from the file by readCrop: strip or tile sizes when mapped, plane region sizes with Bio-Formats
+     */
+    public long getBytesRead() {
+        return((mapped != null) ? mapped.getBytesRead() : bytesRead);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (mapped != null)
+            mapped.close();
+        if (reader != null)
+            reader.close();
+    }
+}
@@ -0,0 +1,81 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Nuclei filtering on an OpenCL device with CLIJ2
+ * @author ORION-CIRB
+ */
+public class ClijFilterEngine implements FilterEngine {
+
+    private final CLIJ2 clij2;
+
+
+    public ClijFilterEngine(CLIJ2 clij2) {
+        this.clij2 = clij2;
+    }
+
+
+    @Override
+    public ImagePlus gaussianBlur(ImagePlus img, double sigma) {
+       ClearCLBuffer imgCL = clij2.push(img);
+       ClearCLBuffer imgCLGauss = clij2.create(imgCL);
+       clij2.gaussianBlur2D(imgCL, imgCLGauss, sigma, sigma);
+       clij2.release(imgCL);
+       ImagePlus imgGauss = clij2.pull(imgCLGauss);
+       clij2.release(imgCLGauss);
+       return(imgGauss);
+    }
+
+
+    @Override
+    public ImagePlus threshold(ImagePlus img, String method) {
+        ClearCLBuffer imgCL = clij2.push(img);
+        ClearCLBuffer imgCLBin = clij2.create(imgCL);
+        clij2.automaticThreshold(imgCL, imgCLBin, method);
+        clij2.release(imgCL);
+        ImagePlus imgBin = clij2.pull(imgCLBin);
+        clij2.release(imgCLBin);
+        return(imgBin);
+    }
+
+
+    @Override
+    public ImagePlus median(ImagePlus img, double radiusXY) {
+       ClearCLBuffer imgCL = clij2.push(img);
+       ClearCLBuffer imgCLMed = clij2.create(imgCL);
+       clij2.median2DBox(imgCL, imgCLMed, radiusXY, radiusXY);
+       clij2.release(imgCL);
+       ImagePlus imgMed = clij2.pull(imgCLMed);
+       clij2.release(imgCLMed);
+       return(imgMed);
+    }
+
+
+    /**
+     * All intermediate images stay on the device,
+     * only the image and the mask are pushed and a single value is read back
+     */
+    @Override
+    public double countForeground(ImagePlus img, ImagePlus mask, double sigma, String thMethod, double medRadius) {
+        ClearCLBuffer imgCL = clij2.push(img);
+        ClearCLBuffer imgCLTmp = clij2.create(imgCL);
+        ClearCLBuffer imgCLBin = clij2.create(imgCL);
+        clij2.gaussianBlur2D(imgCL, imgCLTmp, sigma, sigma);
+        clij2.automaticThreshold(imgCLTmp, imgCLBin, thMethod);
+        clij2.median2DBox(imgCLBin, imgCLTmp, medRadius, medRadius);
+
+        ClearCLBuffer maskCL = clij2.push(mask);
+        clij2.mask(imgCLTmp, maskCL, imgCLBin);
+        double nbPixels = clij2.getSumOfAllPixels(imgCLBin);
+
+        clij2.release(imgCL);
+        clij2.release(imgCLTmp);
+        clij2.release(imgCLBin);
+        clij2.release(maskCL);
+        return(nbPixels);
+    }
+}
@@ -0,0 +1,160 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Compact binary export of results, column by column, for downstream aggregation without parsing text
+ * Two tables are written in outDir on commit, nothing is written if the sink is closed without commit:
+ *   results.bin: one row per ROI (parent folder, image, ROI, ROI area, nb nuclei, nb c-Fos cells)
+ *   objects.bin: one row per c-Fos cell (parent folder, image, ROI, area, mean and integrated intensity, centroid x and y)
+ * Objects of ROIs restored from a previous run come from their measurements cached in the manifest
+ *
+ * File layout, big-endian:
+ *   magic "CFOSTAB1" (8 bytes), int nbColumns, int nbRows
+ *   for each column: UTF name, byte type ('S' string, 'I' int32, 'D' float64)
+ *   for each column: nbRows values, strings as an int32 index in the string table that follows the columns
+ *   int nbStrings, then each distinct string as UTF
+ * Numeric columns are contiguous and can be mapped directly (e.g. numpy.frombuffer with dtype '>f8')
+ * @author ORION-CIRB
+ */
+public class ColumnarResultSink implements ResultSink {
+
+    private static final byte[] MAGIC = "CFOSTAB1".getBytes(StandardCharsets.US_ASCII);
+
+    private final File outDir;
+    private final Table rois = new Table(new String[] {"parent_folder", "image", "roi", "roi_area_um2", "nb_nuclei", "nb_cfos"},
+            new char[] {'S', 'S', 'S', 'D', 'I', 'I'});
+    private final Table objects = new Table(new String[] {"parent_folder", "image", "roi", "area_um2", "mean_intensity",
+            "integrated_intensity", "centroid_x_um", "centroid_y_um"}, new char[] {'S', 'S', 'S', 'D', 'D', 'D', 'D', 'D'});
+
+
+    public ColumnarResultSink(File outDir) {
+        this.outDir = outDir;
+    }
+
+
+    @Override
+    public void write(RoiResult result) {
+        int[] keys = {rois.string(result.parentFolder), rois.string(result.imageName), rois.string(result.roiName)};
+        rois.addRow(keys, new double[] {result.roiArea, result.nbNuclei, result.nbCFos});
+        if (!result.hasObjects())
+            return;
+        keys = new int[] {objects.string(result.parentFolder), objects.string(result.imageName), objects.string(result.roiName)};
+        for (int i = 0; i < result.objArea.length; i++)
+            objects.addRow(keys, new double[] {result.objArea[i], result.objMeanIntensity[i], result.objIntegratedIntensity[i],
+                result.objCentroidX[i], result.objCentroidY[i]});
+    }
+
+
+    @Override
+    public void commit() throws IOException {
+        rois.write(new File(outDir, "results.bin"));
+        objects.write(new File(outDir, "objects.bin"));
+    }
+
+
+    /**
+     * Tables are only kept in memory until commit
+     */
+    @Override
+    public void close() {
+    }
+
+
+    /**
+     * In-memory table, string columns first then numeric columns
+     * Strings are interned in a table, numeric values are kept in growable primitive arrays
+     */
+    private static class Table {
+        final String[] names;
+        final char[] types;
+        final int nbStringCols;
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> stringIndex = new HashMap<>();
+        int[][] keys;
+        double[][] values;
+        int nbRows = 0;
+
+        Table(String[] names, char[] types) {
+            this.names = names;
+            this.types = types;
+            int n = 0;
+            while (n < types.length && types[n] == 'S')
+                n++;
+            nbStringCols = n;
+            keys = new int[nbStringCols][1024];
+            values = new double[types.length - nbStringCols][1024];
+        }
+
+        int string(String s) {
+            return(stringIndex.computeIfAbsent(s, k -> {
+                strings.add(k);
+                return(strings.size() - 1);
+            }));
+        }
+
+        void addRow(int[] rowKeys, double[] rowValues) {
+            if (nbRows == keys[0].length) {
+                for (int c = 0; c < keys.length; c++)
+                    keys[c] = Arrays.copyOf(keys[c], 2*nbRows);
+                for (int c = 0; c < values.length; c++)
+                    values[c] = Arrays.copyOf(values[c], 2*nbRows);
+            }
+            for (int c = 0; c < keys.length; c++)
+                keys[c][nbRows] = rowKeys[c];
+            for (int c = 0; c < values.length; c++)
+                values[c][nbRows] = rowValues[c];
+            nbRows++;
+        }
+
+        /**
+         * Written under a temp name then renamed, so that a crash never leaves a truncated table
+         */
+        void write(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            boolean written = false;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.write(MAGIC);
+                out.writeInt(names.length);
+                out.writeInt(nbRows);
+                for (int c = 0; c < names.length; c++) {
+                    out.writeUTF(names[c]);
+                    out.writeByte(types[c]);
+                }
+                for (int c = 0; c < keys.length; c++)
+                    for (int r = 0; r < nbRows; r++)
+                        out.writeInt(keys[c][r]);
+                for (int c = 0; c < values.length; c++) {
+                    char type = types[nbStringCols + c];
+                    for (int r = 0; r < nbRows; r++) {
+                        if (type == 'I')
+                            out.writeInt((int) values[c][r]);
+                        else
+                            out.writeDouble(values[c][r]);
+                    }
+                }
+                out.writeInt(strings.size());
+                for (String s : strings)
+                    out.writeUTF(s);
+                written = true;
+            } finally {
+                if (!written)
+                    Files.deleteIfExists(tmp.toPath());
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.ImagePlus;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * Multithreaded pure-Java nuclei filtering, used when no OpenCL device is available
+ * Images are processed by rows (or bands of rows) in parallel on all cores
+ * @author ORION-CIRB
+ */
+public class CpuFilterEngine implements FilterEngine {
+
+    private static final int NBINS = 256;
+
+
+    private static int clamp(int v, int min, int max) {
+        return(Math.min(Math.max(v, min), max));
+    }
+
+
+    /**
+     * Normalized 1D Gaussian kernel of radius 3*sigma
+     */
+    private static float[] gaussianKernel(double sigma) {
+        int radius = Math.max(1, (int) Math.ceil(3*sigma));
+        float[] kernel = new float[2*radius+1];
+        float sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+            kernel[k+radius] = (float) Math.exp(-k*k / (2*sigma*sigma));
+            sum += kernel[k+radius];
+        }
+        for (int k = 0; k < kernel.length; k++)
+            kernel[k] /= sum;
+        return(kernel);
+    }
+
+
+    /**
+     * Convert float result back to the bit depth of the input image, without scaling
+     */
+    private static ImageProcessor toBitDepth(FloatProcessor fp, int bitDepth) {
+        switch (bitDepth) {
+            case 8 :
+                return(fp.convertToByteProcessor(false));
+            case 16 :
+                return(fp.convertToShortProcessor(false));
+            default :
+                return(fp);
+        }
+    }
+
+
+    /**
+     * Separable Gaussian filter: a horizontal then a vertical pass, each one parallel over rows
+     * Borders are handled by repeating edge pixels
+     */
+    @Override
+    public ImagePlus gaussianBlur(ImagePlus img, double sigma) {
+        ImageProcessor ip = img.getProcessor();
+        int w = ip.getWidth();
+        int h = ip.getHeight();
+        float[] in = (float[]) ip.convertToFloatProcessor().getPixels();
+        float[] tmp = new float[w*h];
+        float[] out = new float[w*h];
+        float[] kernel = gaussianKernel(sigma);
+        int r = kernel.length / 2;
+
+        IntStream.range(0, h).parallel().forEach(y -> {
+            int row = y*w;
+            for (int x = 0; x < w; x++) {
+                float sum = 0;
+                for (int k = -r; k <= r; k++)
+                    sum += kernel[k+r] * in[row + clamp(x+k, 0, w-1)];
+                tmp[row+x] = sum;
+            }
+        });
+        IntStream.range(0, h).parallel().forEach(y -> {
+            int row = y*w;
+            for (int k = -r; k <= r; k++) {
+                int rowK = clamp(y+k, 0, h-1)*w;
+                float c = kernel[k+r];
+                for (int x = 0; x < w; x++)
+                    out[row+x] += c * tmp[rowK+x];
+            }
+        });
+
+        ImagePlus imgGauss = new ImagePlus(img.getTitle(), toBitDepth(new FloatProcessor(w, h, out), img.getBitDepth()));
+        imgGauss.setCalibration(img.getCalibration());
+        return(imgGauss);
+    }
+
+
+    /**
+     * Automatic threshold computed like CLIJ2, on a 256 bins histogram between image min and max
+     * For 8 and 16-bit images pixels are read once: the full range histogram
+     * gives min and max and is then binned to 256 bins
+     */
+    @Override
+    public ImagePlus threshold(ImagePlus img, String method) {
+        ImageProcessor ip = img.getProcessor();
+        int n = ip.getPixelCount();
+        byte[] bin = new byte[n];
+
+        if (ip instanceof ByteProcessor || ip instanceof ShortProcessor) {
+            int[] fullHist = integerHistogram(ip);
+            int min = 0;
+            while (min < fullHist.length-1 && fullHist[min] == 0)
+                min++;
+            int max = fullHist.length-1;
+            while (max > min && fullHist[max] == 0)
+                max--;
+
+            int[] hist = new int[NBINS];
+            for (int v = min; v <= max; v++)
+                hist[toBin(v, min, max)] += fullHist[v];
+            int th = new AutoThresholder().getThreshold(method, hist);
+
+            // Look-up table from pixel value to binary value
+            byte[] lut = new byte[fullHist.length];
+            for (int v = min; v <= max; v++)
+                lut[v] = (byte) ((max > min && toBin(v, min, max) > th) ? 1 : 0);
+            if (ip instanceof ByteProcessor) {
+                byte[] pixels = (byte[]) ip.getPixels();
+                IntStream.range(0, n).parallel().forEach(i -> bin[i] = lut[pixels[i] & 0xff]);
+            } else {
+                short[] pixels = (short[]) ip.getPixels();
+                IntStream.range(0, n).parallel().forEach(i -> bin[i] = lut[pixels[i] & 0xffff]);
+            }
+        } else {
+            float[] pixels = (float[]) ip.convertToFloatProcessor().getPixels();
+            double min = IntStream.range(0, n).parallel().mapToDouble(i -> pixels[i]).min().orElse(0);
+            double max = IntStream.range(0, n).parallel().mapToDouble(i -> pixels[i]).max().orElse(0);
+            int[] hist = new int[NBINS];
+            for (int i = 0; i < n; i++)
+                hist[toBin(pixels[i], min, max)]++;
+            int th = new AutoThresholder().getThreshold(method, hist);
+            IntStream.range(0, n).parallel().forEach(i -> bin[i] = (byte) ((max > min && toBin(pixels[i], min, max) > th) ? 1 : 0));
+        }
+
+        ImagePlus imgBin = new ImagePlus(img.getTitle(), new ByteProcessor(ip.getWidth(), ip.getHeight(), bin));
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+
+
+    private static int toBin(double v, double min, double max) {
+        if (max <= min)
+            return(0);
+        return(clamp((int) ((v - min) * (NBINS-1) / (max - min)), 0, NBINS-1));
+    }
+
+
+    /**
+     * Full range histogram of an 8 or 16-bit image, built in parallel over bands of pixels
+     */
+    private static int[] integerHistogram(ImageProcessor ip) {
+        int nValues = (ip instanceof ByteProcessor) ? 256 : 65536;
+        int n = ip.getPixelCount();
+        int nBands = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n / 65536));
+        Object pixels = ip.getPixels();
+        int[][] partial = new int[nBands][];
+        IntStream.range(0, nBands).parallel().forEach(b -> {
+            int[] hist = new int[nValues];
+            int start = (int) ((long) n * b / nBands);
+            int end = (int) ((long) n * (b+1) / nBands);
+            if (pixels instanceof byte[]) {
+                byte[] px = (byte[]) pixels;
+                for (int i = start; i < end; i++)
+                    hist[px[i] & 0xff]++;
+            } else {
+                short[] px = (short[]) pixels;
+                for (int i = start; i < end; i++)
+                    hist[px[i] & 0xffff]++;
+            }
+            partial[b] = hist;
+        });
+        int[] hist = partial[0];
+        for (int b = 1; b < nBands; b++)
+            for (int v = 0; v < nValues; v++)
+                hist[v] += partial[b][v];
+        return(hist);
+    }
+
+
+    /**
+     * Constant-time median filter (Perreault & Hebert): one histogram per column is updated
+     * row by row and the box histogram slides along the row, so the cost per pixel does not
+     * depend on the radius. Rows are split in bands processed in parallel.
+     * Works on 8-bit data, other images are converted without scaling (the nuclei pipeline
+     * only median filters binary images).
+     */
+    @Override
+    public ImagePlus median(ImagePlus img, double radiusXY) {
+        ImageProcessor ip = img.getProcessor();
+        if (!(ip instanceof ByteProcessor))
+            ip = ip.convertToByteProcessor(false);
+        int w = ip.getWidth();
+        int h = ip.getHeight();
+        int r = (int) Math.round(radiusXY);
+        byte[] in = (byte[]) ip.getPixels();
+        byte[] out = new byte[w*h];
+
+        int nBands = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), h / Math.max(1, 2*r+1)));
+        IntStream.range(0, nBands).parallel().forEach(b ->
+            medianBand(in, out, w, h, r, (int) ((long) h * b / nBands), (int) ((long) h * (b+1) / nBands)));
+
+        ImagePlus imgMed = new ImagePlus(img.getTitle(), new ByteProcessor(w, h, out));
+        imgMed.setCalibration(img.getCalibration());
+        return(imgMed);
+    }
+
+
+    private static void medianBand(byte[] in, byte[] out, int w, int h, int r, int y0, int y1) {
+        int[] colHist = new int[w*NBINS];
+        int[] boxHist = new int[NBINS];
+        int half = (2*r+1)*(2*r+1) / 2;
+
+        // Column histograms hold rows y-r-1 to y+r-1 before processing row y
+        for (int k = y0-r-1; k <= y0+r-1; k++) {
+            int row = clamp(k, 0, h-1)*w;
+            for (int x = 0; x < w; x++)
+                colHist[x*NBINS + (in[row+x] & 0xff)]++;
+        }
+
+        for (int y = y0; y < y1; y++) {
+            int rowOut = clamp(y-r-1, 0, h-1)*w;
+            int rowIn = clamp(y+r, 0, h-1)*w;
+            for (int x = 0; x < w; x++) {
+                colHist[x*NBINS + (in[rowOut+x] & 0xff)]--;
+                colHist[x*NBINS + (in[rowIn+x] & 0xff)]++;
+            }
+
+            Arrays.fill(boxHist, 0);
+            for (int k = -r; k <= r; k++)
+                addColumn(boxHist, colHist, clamp(k, 0, w-1), 1);
+            for (int x = 0; x < w; x++) {
+                if (x > 0) {
+                    addColumn(boxHist, colHist, clamp(x+r, 0, w-1), 1);
+                    addColumn(boxHist, colHist, clamp(x-r-1, 0, w-1), -1);
+                }
+                int v = 0;
+                for (int count = boxHist[0]; count <= half; count += boxHist[v])
+                    v++;
+                out[y*w+x] = (byte) v;
+            }
+        }
+    }
+
+
+    private static void addColumn(int[] boxHist, int[] colHist, int x, int sign) {
+        int offset = x*NBINS;
+        for (int v = 0; v < NBINS; v++)
+            boxHist[v] += sign*colHist[offset+v];
+    }
+
+
+    @Override
+    public double countForeground(ImagePlus img, ImagePlus mask, double sigma, String thMethod, double medRadius) {
+        ImagePlus imgGauss = gaussianBlur(img, sigma);
+        ImagePlus imgBin = threshold(imgGauss, thMethod);
+        ImagePlus imgMed = median(imgBin, medRadius);
+        byte[] fg = (byte[]) imgMed.getProcessor().getPixels();
+        byte[] roi = (byte[]) mask.getProcessor().convertToByteProcessor(false).getPixels();
+        long nbPixels = IntStream.range(0, fg.length).parallel().filter(i -> fg[i] != 0 && roi[i] != 0).count();
+        imgGauss.flush();
+        imgBin.flush();
+        imgMed.flush();
+        return(nbPixels);
+    }
+}
@@ -0,0 +1,378 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Index of the images of a folder tree, built in a single walk
+ * Subfolders of the root are walked in parallel, each folder being listed once,
+ * then images are sorted once and matched with their channel files and ROI file from the folder listings,
+ * so that no file is probed on disk and missing files are known before the analysis starts
+ * @author ORION-CIRB
+ */
+public class Dataset {
+
+    private static final Set<String> SKIPPED_DIRS = new HashSet<>(Arrays.asList("Results"));
+    private static final String[] CHANNEL_EXTS = {"tif", "TIF"};
+    private static final Pattern WAVELENGTH = Pattern.compile("(?<!\\d)(\\d{3})(?!\\d)");
+
+    /**
+     * One image: .nd file, its channel files and its ROI file, null if missing,
+     * and its calibration and channels (suffixes of channel files) once metadata are read, null if unknown
+     */
+    public static class Image {
+        public final String file;
+        public final String parentFolder;
+        public final String rootName;
+        public String[] channelFiles;
+        public String roiFile;
+        public Calibration cal;
+        public String[] channels;
+        final String dir;
+        final Set<String> dirFiles;
+
+        Image(String file, String parentFolder, Set<String> dirFiles) {
+            this.file = file;
+            this.parentFolder = parentFolder;
+            this.rootName = FilenameUtils.getBaseName(file);
+            this.dir = new File(file).getParent() + File.separator;
+            this.dirFiles = dirFiles;
+        }
+
+        public boolean isComplete() {
+            if (roiFile == null || channelFiles == null)
+                return(false);
+            for (String ch : channelFiles)
+                if (ch == null)
+                    return(false);
+            return(true);
+        }
+    }
+
+    private final String imageDir;
+    private final List<Image> images;
+
+
+    private Dataset(String imageDir, List<Image> images) {
+        this.imageDir = imageDir;
+        this.images = images;
+    }
+
+
+    /**
+     * Walk imageDir and index all files with extension imageExt, Results folders are skipped
+     * Symbolic links to files and folders are followed
+     */
+    public static Dataset scan(String imageDir, String imageExt) throws IOException {
+        Path root = Paths.get(imageDir);
+        Map<Path, Set<String>> filesByDir = new ConcurrentHashMap<>();
+
+        // Root files, then each subfolder tree in parallel
+        List<Path> subDirs = new ArrayList<>();
+        Set<String> rootFiles = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path p : stream) {
+                if (Files.isDirectory(p)) {
+                    if (!SKIPPED_DIRS.contains(p.getFileName().toString()))
+                        subDirs.add(p);
+                } else {
+                    rootFiles.add(p.getFileName().toString());
+                }
+            }
+        }
+        filesByDir.put(root, rootFiles);
+        try {
+            subDirs.parallelStream().forEach(dir -> {
+                try {
+                    walk(dir, filesByDir);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        String rootDir = root.toString() + File.separator;
+        List<Image> images = new ArrayList<>();
+        for (Map.Entry<Path, Set<String>> e : filesByDir.entrySet()) {
+            for (String name : e.getValue()) {
+                if (name.startsWith(".") || !FilenameUtils.getExtension(name).equals(imageExt))
+                    continue;
+                String file = e.getKey().resolve(name).toString();
+                String parentFolder = file.replace(rootDir, "").replace(name, "");
+                images.add(new Image(file, parentFolder, e.getValue()));
+            }
+        }
+        images.sort(Comparator.comparing(img -> img.file));
+        return(new Dataset(rootDir, images));
+    }
+
+
+    private static void walk(Path start, Map<Path, Set<String>> filesByDir) throws IOException {
+        Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (SKIPPED_DIRS.contains(dir.getFileName().toString()))
+                    return(FileVisitResult.SKIP_SUBTREE);
+                filesByDir.put(dir, Collections.newSetFromMap(new ConcurrentHashMap<>()));
+                return(FileVisitResult.CONTINUE);
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile())
+                    filesByDir.get(file.getParent()).add(file.getFileName().toString());
+                return(FileVisitResult.CONTINUE);
+            }
+
+            /**
+             * Broken links and link loops are ignored
+             */
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return(FileVisitResult.CONTINUE);
+            }
+        });
+    }
+
+
+    /**
+     * Match each image with its channel files (rootName_channel.tif or .TIF) and its ROI file (.roi, else .zip)
+     * Return a description of each missing file
+     */
+    public List<String> resolve(String[] chs) {
+        return(resolve(images, chs));
+    }
+
+
+    /**
+     * Match images with their channel and ROI files
+     * A channel without file is replaced by the only channel of the image with the same wavelength (e.g. w2DAPI_405
+     * for w1CSU_405_t1 if images were taken with different setups), the replacement being reported with missing files;
+     * the image is skipped if there is no such channel
+     */
+    public static List<String> resolve(List<Image> images, String[] chs) {
+        List<String> missing = new ArrayList<>();
+        for (Image img : images) {
+            img.channelFiles = new String[chs.length];
+            for (int c = 0; c < chs.length; c++) {
+                img.channelFiles[c] = channelFile(img, chs[c]);
+                if (img.channelFiles[c] != null)
+                    continue;
+                String ch = sameWavelength(img, chs[c]);
+                if (ch == null) {
+                    missing.add(img.parentFolder + img.rootName + ": no channel " + chs[c] + " file");
+                } else {
+                    img.channelFiles[c] = channelFile(img, ch);
+                    missing.add(img.parentFolder + img.rootName + ": no channel " + chs[c] + " file, channel " + ch + " of same wavelength used instead");
+                }
+            }
+            img.roiFile = null;
+            if (img.dirFiles.contains(img.rootName + ".roi"))
+                img.roiFile = img.dir + img.rootName + ".roi";
+            else if (img.dirFiles.contains(img.rootName + ".zip"))
+                img.roiFile = img.dir + img.rootName + ".zip";
+            else
+                missing.add(img.parentFolder + img.rootName + ": no .roi or .zip ROI file");
+        }
+        return(missing);
+    }
+
+
+    /**
+     * File of channel ch of image (tif or TIF), null if not found
+     */
+    private static String channelFile(Image img, String ch) {
+        for (String ext : CHANNEL_EXTS) {
+            String name = img.rootName + "_" + ch + "." + ext;
+            if (img.dirFiles.contains(name))
+                return(img.dir + name);
+        }
+        return(null);
+    }
+
+
+    /**
+     * Wavelength of a channel name: its first number of 3 digits (405 in w1CSU_405_t1), null if none
+     */
+    private static String wavelength(String ch) {
+        Matcher m = WAVELENGTH.matcher(ch);
+        return(m.find() ? m.group(1) : null);
+    }
+
+
+    /**
+     * Channel of image with the same wavelength as ch, from its metadata or else from its files,
+     * null if there is none or several
+     */
+    private static String sameWavelength(Image img, String ch) {
+        String wavelength = wavelength(ch);
+        if (wavelength == null)
+            return(null);
+        Set<String> channels = new LinkedHashSet<>();
+        if (img.channels != null) {
+            channels.addAll(Arrays.asList(img.channels));
+        } else {
+            String prefix = img.rootName + "_";
+            for (String name : img.dirFiles)
+                if (name.startsWith(prefix) && Arrays.asList(CHANNEL_EXTS).contains(FilenameUtils.getExtension(name)))
+                    channels.add(FilenameUtils.getBaseName(name).substring(prefix.length()));
+        }
+        String found = null;
+        for (String other : channels) {
+            if (!wavelength.equals(wavelength(other)) || channelFile(img, other) == null)
+                continue;
+            if (found != null)
+                return(null);
+            found = other;
+        }
+        return(found);
+    }
+
+
+    /**
+     * Read calibration and channels of images in their metadata
+     * A single reader is reused for all images, each file being parsed once
+     * Channels are the suffixes of the channel files (rootName_suffix.tif), in the order of the channels found by Tools.findChannels
+     * Return a description of each image whose metadata can't be read
+     */
+    public static List<String> readMetadata(List<Image> images, Tools tools) throws DependencyException, ServiceException {
+        List<String> errors = new ArrayList<>();
+        IMetadata meta = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+        ImageProcessorReader reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+        reader.setMetadataStore(meta);
+        for (Image img : images) {
+            try {
+                meta.createRoot();
+                reader.setId(img.file);
+                Length size = meta.getPixelsPhysicalSizeX(0);
+                if (size != null && size.value(UNITS.MICROMETER) != null && size.value(UNITS.MICROMETER).doubleValue() > 0) {
+                    img.cal = new Calibration();
+                    img.cal.pixelWidth = img.cal.pixelHeight = size.value(UNITS.MICROMETER).doubleValue();
+                    img.cal.pixelDepth = 1;
+                    img.cal.setUnit("microns");
+                }
+                img.channels = channelSuffixes(img, tools.findChannels(img.file, meta, reader), reader.getUsedFiles(false));
+            } catch (FormatException | IOException | RuntimeException e) {
+                errors.add(img.parentFolder + img.rootName + ": " + e.getMessage());
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return(errors);
+    }
+
+
+    /**
+     * Suffixes of the channel files of image, the first one containing the name of each channel and not taken by another one,
+     * all suffixes if some channels have no name (numbers given by Tools.findChannels) or are not found in them
+     */
+    private static String[] channelSuffixes(Image img, String[] names, String[] usedFiles) {
+        Set<String> suffixes = new LinkedHashSet<>();
+        String prefix = img.rootName + "_";
+        for (String used : usedFiles) {
+            String name = FilenameUtils.getName(used);
+            if (name.startsWith(prefix) && Arrays.asList(CHANNEL_EXTS).contains(FilenameUtils.getExtension(name)))
+                suffixes.add(FilenameUtils.getBaseName(name).substring(prefix.length()));
+        }
+        String[] channels = new String[names.length];
+        for (int n = 0; n < names.length; n++) {
+            if (names[n] == null || names[n].matches("\\d+"))
+                return(suffixes.toArray(new String[0]));
+            for (String suffix : suffixes) {
+                if (suffix.contains(names[n]) && !Arrays.asList(channels).contains(suffix)) {
+                    channels[n] = suffix;
+                    break;
+                }
+            }
+            if (channels[n] == null)
+                return(suffixes.toArray(new String[0]));
+        }
+        return(channels);
+    }
+
+
+    /**
+     * Channels of all images whose metadata were read, in order of first appearance
+     */
+    public String[] channels() {
+        Set<String> channels = new LinkedHashSet<>();
+        for (Image img : images)
+            if (img.channels != null)
+                channels.addAll(Arrays.asList(img.channels));
+        return(channels.toArray(new String[0]));
+    }
+
+    /**
+     * Calibration of the first image with a pixel size in its metadata, null if none
+     */
+    public Calibration firstCalibration() {
+        for (Image img : images)
+            if (img.cal != null)
+                return(img.cal);
+        return(null);
+    }
+
+
+    /**
+     * All images, sorted by path
+     */
+    public List<Image> images() {
+        return(images);
+    }
+
+    /**
+     * Images with all their files, once resolved
+     */
+    public List<Image> completeImages() {
+        List<Image> complete = new ArrayList<>();
+        for (Image img : images)
+            if (img.isComplete())
+                complete.add(img);
+        return(complete);
+    }
+
+    public String getImageDir() {
+        return(imageDir);
+    }
+}
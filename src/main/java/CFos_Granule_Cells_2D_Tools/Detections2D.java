@@ -0,0 +1,191 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Cells detected in a 2D image: 16-bit label image and a table of per-label measurements
+ * (area, intensity, bounding box and centroid), stored in primitive arrays
+ * Measurements are computed in a single pass over the label and intensity images, in tables sized to the highest label
+ * and trimmed to the number of labels, the mcib3d population is only built on demand
+ * @author ORION-CIRB
+ */
+public class Detections2D {
+
+    private final ImagePlus imgLabels;
+    private int nbLabels;
+    private int[] area;
+    private double[] sumIntensity;
+    private double[] sumX;
+    private double[] sumY;
+    private int[] minX;
+    private int[] minY;
+    private int[] maxX;
+    private int[] maxY;
+
+
+    /**
+     * Measure all labels of imgLabels in the intensity image img (same size)
+     */
+    public Detections2D(ImagePlus imgLabels, ImagePlus img) {
+        if (imgLabels.getBitDepth() != 16)
+            imgLabels.setProcessor(imgLabels.getProcessor().convertToShort(false));
+        this.imgLabels = imgLabels;
+        short[] labels = (short[]) imgLabels.getProcessor().getPixels();
+        ImageProcessor ip = img.getProcessor();
+        int width = imgLabels.getWidth();
+
+        int maxLabel = 0;
+        for (short label : labels)
+            maxLabel = Math.max(maxLabel, label & 0xffff);
+        area = new int[maxLabel+1];
+        sumIntensity = new double[maxLabel+1];
+        sumX = new double[maxLabel+1];
+        sumY = new double[maxLabel+1];
+        minX = new int[maxLabel+1];
+        minY = new int[maxLabel+1];
+        maxX = new int[maxLabel+1];
+        maxY = new int[maxLabel+1];
+        for (int i = 0; i < labels.length; i++) {
+            int label = labels[i] & 0xffff;
+            if (label == 0)
+                continue;
+            int x = i % width;
+            int y = i / width;
+            if (area[label] == 0) {
+                minX[label] = maxX[label] = x;
+                minY[label] = maxY[label] = y;
+            } else {
+                minX[label] = Math.min(minX[label], x);
+                maxX[label] = Math.max(maxX[label], x);
+                minY[label] = Math.min(minY[label], y);
+                maxY[label] = Math.max(maxY[label], y);
+            }
+            area[label]++;
+            sumIntensity[label] += ip.getf(i);
+            sumX[label] += x;
+            sumY[label] += y;
+        }
+
+        // Relabel with consecutive values, so that table row i is label i+1
+        boolean[] keep = new boolean[maxLabel+1];
+        for (int label = 1; label <= maxLabel; label++)
+            keep[label] = area[label] > 0;
+        relabel(keep);
+    }
+
+
+    /**
+     * Keep labels with area (in pixels) within [minArea, maxArea] and mean intensity >= minMeanIntensity,
+     * rejected labels are removed from the label image and remaining ones relabeled from 1
+     * Return the number of labels before filtering
+     */
+    public int filter(double minArea, double maxArea, double minMeanIntensity) {
+        int nbBefore = nbLabels;
+        boolean[] keep = new boolean[nbLabels+1];
+        for (int label = 1; label <= nbLabels; label++)
+            keep[label] = area[label] >= minArea && area[label] <= maxArea && sumIntensity[label]/area[label] >= minMeanIntensity;
+        relabel(keep);
+        return(nbBefore);
+    }
+
+
+    /**
+     * Remove labels not kept from the table and the label image, and number remaining ones from 1
+     * Arrays are indexed by label value, rows are moved down in place then arrays are trimmed
+     * keep has an entry for every label of the image
+     */
+    private void relabel(boolean[] keep) {
+        int[] newLabel = new int[keep.length];
+        int n = 0;
+        for (int label = 1; label < keep.length; label++) {
+            if (!keep[label])
+                continue;
+            n++;
+            area[n] = area[label];
+            sumIntensity[n] = sumIntensity[label];
+            sumX[n] = sumX[label];
+            sumY[n] = sumY[label];
+            minX[n] = minX[label];
+            minY[n] = minY[label];
+            maxX[n] = maxX[label];
+            maxY[n] = maxY[label];
+            newLabel[label] = n;
+        }
+        nbLabels = n;
+        area = Arrays.copyOf(area, n+1);
+        sumIntensity = Arrays.copyOf(sumIntensity, n+1);
+        sumX = Arrays.copyOf(sumX, n+1);
+        sumY = Arrays.copyOf(sumY, n+1);
+        minX = Arrays.copyOf(minX, n+1);
+        minY = Arrays.copyOf(minY, n+1);
+        maxX = Arrays.copyOf(maxX, n+1);
+        maxY = Arrays.copyOf(maxY, n+1);
+
+        short[] labels = (short[]) imgLabels.getProcessor().getPixels();
+        for (int i = 0; i < labels.length; i++)
+            labels[i] = (short) newLabel[labels[i] & 0xffff];
+    }
+
+
+    /**
+     * Number of labels
+     */
+    public int size() {
+        return(nbLabels);
+    }
+
+    /**
+     * Area in pixels of the i-th label (label value i+1)
+     */
+    public int getArea(int i) {
+        return(area[i+1]);
+    }
+
+    public double getMeanIntensity(int i) {
+        return(sumIntensity[i+1] / area[i+1]);
+    }
+
+    public double getIntegratedIntensity(int i) {
+        return(sumIntensity[i+1]);
+    }
+
+    public double getCentroidX(int i) {
+        return(sumX[i+1] / area[i+1]);
+    }
+
+    public double getCentroidY(int i) {
+        return(sumY[i+1] / area[i+1]);
+    }
+
+    public Rectangle getBounds(int i) {
+        return(new Rectangle(minX[i+1], minY[i+1], maxX[i+1]-minX[i+1]+1, maxY[i+1]-minY[i+1]+1));
+    }
+
+
+    /**
+     * Label image, label i+1 being the i-th row of the table
+     */
+    public ImagePlus getLabels() {
+        return(imgLabels);
+    }
+
+
+    /**
+     * Build the mcib3d population of the labels, for callers needing objects
+     */
+    public Objects3DIntPopulation toPopulation() {
+        return(new Objects3DIntPopulation(ImageHandler.wrap(imgLabels)));
+    }
+
+
+    public void close() {
+        imgLabels.flush();
+        imgLabels.close();
+    }
+}
@@ -0,0 +1,33 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.ImagePlus;
+
+
+/**
+ * Backend used for nuclei filtering
+ * @author ORION-CIRB
+ */
+public interface FilterEngine {
+
+    /**
+     * 2D Gaussian filter
+     */
+    ImagePlus gaussianBlur(ImagePlus img, double sigma);
+
+    /**
+     * Automatic threshold, returns a binary image (1 above threshold, 0 below)
+     */
+    ImagePlus threshold(ImagePlus img, String method);
+
+    /**
+     * 2D median filter with a box of radius radiusXY
+     */
+    ImagePlus median(ImagePlus img, double radiusXY);
+
+    /**
+     * Number of foreground pixels inside the mask once the image is
+     * blurred, thresholded and median filtered
+     */
+    double countForeground(ImagePlus img, ImagePlus mask, double sigma, String thMethod, double medRadius);
+
+}
@@ -0,0 +1,194 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+
+
+/**
+ * Command-line entry point, running the same analysis as the plugin without Fiji GUI
+ *
+ * java -Djava.awt.headless=true -cp "CFos_Granule_Cells_2D.jar:Fiji.app/jars/*:Fiji.app/plugins/*" \
+ *      CFos_Granule_Cells_2D_Tools.HeadlessRunner --dir images/ [--out results/] [--params params.properties]
+ *      [--images name1,name2] [--imagesFile list.txt] [--shard i/N [--shardBy index|hash]] [--key=value ...]
+ * java ... CFos_Granule_Cells_2D_Tools.HeadlessRunner --merge --out results/
+ *
+ * Parameters are read from the properties file, then overridden by --key=value flags,
+ * keys are listed in Tools.loadParameters()
+ * --images and --imagesFile restrict the analysis to images with these names (without extension),
+ * --shard i/N only analyzes shard i (0-based) of N and writes in out/shard-i-of-N/, see Shards;
+ * once all shards are done, --merge combines their results in out/
+ * @author ORION-CIRB
+ */
+public class HeadlessRunner {
+
+    // Same defaults as the plugin, when not found in metadata
+    private static final String[] CHANNELS = {"w1CSU_405_t1" , "w4CSU_642_t1"};
+    private static final double PIXEL_SIZE = 0.1625;
+
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int status;
+        try {
+            status = run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            status = 2;
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+
+    public static int run(String[] args) throws IOException, InterruptedException, DependencyException, ServiceException {
+        Properties options = parseArgs(args);
+        if (Boolean.parseBoolean(options.getProperty("merge", "false"))) {
+            String outDir = options.getProperty("out");
+            if (outDir == null && options.getProperty("dir") != null)
+                outDir = options.getProperty("dir") + File.separator + "Results";
+            if (outDir == null)
+                throw new IllegalArgumentException("--merge needs --out or --dir");
+            Shards.merge(new File(outDir).getAbsolutePath() + File.separator, new Tools());
+            return(0);
+        }
+        
+        String imageDir = options.getProperty("dir");
+        if (imageDir == null || !new File(imageDir).isDirectory())
+            throw new IllegalArgumentException("--dir must be an existing directory");
+        imageDir = new File(imageDir).getAbsolutePath() + File.separator;
+
+        // Parameters file, overridden by command-line flags
+        Properties params = new Properties();
+        if (options.getProperty("params") != null) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(options.getProperty("params")), StandardCharsets.UTF_8)) {
+                params.load(reader);
+            }
+        }
+        params.putAll(options);
+
+        Dataset dataset = Dataset.scan(imageDir, "nd");
+        List<Dataset.Image> images = selectImages(dataset.images(), options);
+        if (images.isEmpty()) {
+            System.err.println("ERROR: No images found with nd extension");
+            return(1);
+        }
+
+        // Calibration and channels found in the metadata of the first image are the defaults, parameters override them
+        Tools tools = new Tools();
+        List<Dataset.Image> first = Collections.singletonList(images.get(0));
+        for (String error : Dataset.readMetadata(first, tools))
+            System.err.println("WARNING: Cannot read metadata of " + error);
+        Calibration cal = dataset.firstCalibration();
+        tools.cal.pixelWidth = tools.cal.pixelHeight = (cal != null) ? cal.pixelWidth : PIXEL_SIZE;
+        tools.cal.pixelDepth = 1;
+        tools.pixArea = tools.cal.pixelWidth * tools.cal.pixelHeight;
+        String[] channels = dataset.channels();
+        String[] chs = tools.loadParameters(params, (channels.length < CHANNELS.length) ? CHANNELS : channels);
+        
+        // Images are split before reading their metadata, so that each shard only reads its own images
+        // A shard may get no image, it still writes empty tables so that shards can be merged
+        int[] shard = parseShard(options.getProperty("shard"));
+        if (shard != null) {
+            String shardBy = options.getProperty("shardBy", "index");
+            if (!shardBy.equals("index") && !shardBy.equals("hash"))
+                throw new IllegalArgumentException("--shardBy must be index or hash");
+            images = Shards.select(images, shard[0], shard[1], shardBy.equals("hash"));
+        }
+        List<Dataset.Image> others = new ArrayList<>(images);
+        others.removeAll(first);
+        for (String error : Dataset.readMetadata(others, tools))
+            System.err.println("WARNING: Cannot read metadata of " + error);
+        // Missing files are reported before starting, images with missing files are skipped
+        for (String missing : Dataset.resolve(images, chs))
+            System.err.println("WARNING: Missing file: " + missing);
+        images.removeIf(img -> !img.isComplete());
+
+        String outDir = options.getProperty("out", imageDir + "Results");
+        outDir = new File(outDir).getAbsolutePath() + File.separator;
+        if (shard != null)
+            outDir = Shards.shardDir(outDir, shard[0], shard[1]);
+        Files.createDirectories(new File(outDir).toPath());
+
+        tools.print("--- Analyzing " + images.size() + " image(s) of " + imageDir + " in " + outDir + " ---");
+        try {
+            BatchScheduler.analyze(tools, outDir, chs, images, shard != null);
+        } finally {
+            tools.closeCellposeWorker();
+        }
+        tools.print("--- All done! ---");
+        return(0);
+    }
+
+
+    /**
+     * --key=value and --key value flags as properties, a flag without value is "true"
+     */
+    static Properties parseArgs(String[] args) {
+        Properties options = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            String arg = args[i].substring(2);
+            int eq = arg.indexOf('=');
+            if (eq >= 0)
+                options.setProperty(arg.substring(0, eq), arg.substring(eq+1));
+            else if (i+1 < args.length && !args[i+1].startsWith("--"))
+                options.setProperty(arg, args[++i]);
+            else
+                options.setProperty(arg, "true");
+        }
+        return(options);
+    }
+
+
+    /**
+     * "i/N" as {i, N}, null if no shard given
+     */
+    static int[] parseShard(String shard) {
+        if (shard == null)
+            return(null);
+        String[] f = shard.split("/");
+        try {
+            if (f.length == 2)
+                return(new int[] {Integer.parseInt(f[0].trim()), Integer.parseInt(f[1].trim())});
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException("--shard must be i/N, got " + shard);
+    }
+
+
+    /**
+     * Keep images listed with --images or in --imagesFile, all images if none
+     */
+    static List<Dataset.Image> selectImages(List<Dataset.Image> images, Properties options) throws IOException {
+        Set<String> names = new HashSet<>();
+        if (options.getProperty("images") != null)
+            names.addAll(Arrays.asList(options.getProperty("images").split(",")));
+        if (options.getProperty("imagesFile") != null)
+            for (String line : Files.readAllLines(new File(options.getProperty("imagesFile")).toPath(), StandardCharsets.UTF_8))
+                if (!line.trim().isEmpty())
+                    names.add(line.trim());
+        List<Dataset.Image> selected = new ArrayList<>();
+        for (Dataset.Image image : images)
+            if (names.isEmpty() || names.contains(image.rootName))
+                selected.add(image);
+        return(selected);
+    }
+}
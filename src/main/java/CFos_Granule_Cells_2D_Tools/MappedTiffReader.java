@@ -0,0 +1,255 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Reader of the first plane of uncompressed, single-channel TIFF files (strips or tiles), mapped in memory
+ * Only the rows of a region are copied to the heap, so heap use depends on the region size, not on the frame size
+ * Files that can't be read this way are left to Bio-Formats, open() returns null: any compression but none,
+ * sample formats other than 8 or 16-bit unsigned and 32-bit float, RGB, reversed bit fill order, BigTIFF or > 2 GB
+ * @author ORION-CIRB
+ */
+public class MappedTiffReader implements Closeable {
+
+    private static final int IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258, COMPRESSION = 259,
+            PHOTOMETRIC = 262, FILL_ORDER = 266, STRIP_OFFSETS = 273, SAMPLES_PER_PIXEL = 277, ROWS_PER_STRIP = 278, STRIP_BYTE_COUNTS = 279,
+            TILE_WIDTH = 322, TILE_LENGTH = 323, TILE_OFFSETS = 324, TILE_BYTE_COUNTS = 325, SAMPLE_FORMAT = 339;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int width;
+    private int height;
+    private int bytesPerSample;
+    private boolean floatData;
+    // Strips are blocks of width x rowsPerStrip pixels
+    private int blockWidth;
+    private int blockHeight;
+    private int blocksAcross;
+    private long[] offsets;
+    private long[] blockBytes;
+    private long bytesRead;
+
+
+    private MappedTiffReader(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+
+    /**
+     * Map file, or return null if it is not an uncompressed TIFF this reader supports
+     */
+    public static MappedTiffReader open(String file) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        try {
+            if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE) {
+                channel.close();
+                return(null);
+            }
+            MappedTiffReader reader = new MappedTiffReader(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (!reader.parseHeader()) {
+                channel.close();
+                return(null);
+            }
+            return(reader);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            // Malformed header: let Bio-Formats report it
+            channel.close();
+            return(null);
+        }
+    }
+
+
+    /**
+     * Read first IFD, return false if the image is not supported
+     */
+    private boolean parseHeader() {
+        ByteBuffer buf = buffer.duplicate();
+        short byteOrder = buf.getShort(0);
+        if (byteOrder == 0x4949)
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        else if (byteOrder == 0x4D4D)
+            buf.order(ByteOrder.BIG_ENDIAN);
+        else
+            return(false);
+        buffer.order(buf.order());
+        // 42 is classic TIFF, 43 BigTIFF
+        if (buf.getShort(2) != 42)
+            return(false);
+
+        int ifd = buf.getInt(4);
+        int nbEntries = buf.getShort(ifd) & 0xffff;
+        long compression = 1, samplesPerPixel = 1, sampleFormat = 1, photometric = 1, bits = 1, fillOrder = 1;
+        long rowsPerStrip = -1;
+        long[] stripOffsets = null, stripByteCounts = null, tileOffsets = null, tileByteCounts = null;
+        width = height = blockWidth = blockHeight = 0;
+        for (int e = 0; e < nbEntries; e++) {
+            int entry = ifd + 2 + 12*e;
+            int tag = buf.getShort(entry) & 0xffff;
+            switch (tag) {
+                case IMAGE_WIDTH: width = (int) values(buf, entry)[0]; break;
+                case IMAGE_LENGTH: height = (int) values(buf, entry)[0]; break;
+                case BITS_PER_SAMPLE: bits = values(buf, entry)[0]; break;
+                case COMPRESSION: compression = values(buf, entry)[0]; break;
+                case PHOTOMETRIC: photometric = values(buf, entry)[0]; break;
+                case FILL_ORDER: fillOrder = values(buf, entry)[0]; break;
+                case SAMPLES_PER_PIXEL: samplesPerPixel = values(buf, entry)[0]; break;
+                case ROWS_PER_STRIP: rowsPerStrip = values(buf, entry)[0]; break;
+                case STRIP_OFFSETS: stripOffsets = values(buf, entry); break;
+                case STRIP_BYTE_COUNTS: stripByteCounts = values(buf, entry); break;
+                case TILE_WIDTH: blockWidth = (int) values(buf, entry)[0]; break;
+                case TILE_LENGTH: blockHeight = (int) values(buf, entry)[0]; break;
+                case TILE_OFFSETS: tileOffsets = values(buf, entry); break;
+                case TILE_BYTE_COUNTS: tileByteCounts = values(buf, entry); break;
+                case SAMPLE_FORMAT: sampleFormat = values(buf, entry)[0]; break;
+                default: break;
+            }
+        }
+
+        if (compression != 1 || samplesPerPixel != 1 || photometric != 1 || fillOrder != 1 || width <= 0 || height <= 0)
+            return(false);
+        floatData = sampleFormat == 3;
+        if (!(bits == 8 && sampleFormat == 1) && !(bits == 16 && sampleFormat == 1) && !(bits == 32 && floatData))
+            return(false);
+        bytesPerSample = (int) bits / 8;
+
+        long[] byteCounts;
+        if (tileOffsets != null) {
+            if (blockWidth <= 0 || blockHeight <= 0)
+                return(false);
+            offsets = tileOffsets;
+            byteCounts = tileByteCounts;
+        } else {
+            if (stripOffsets == null)
+                return(false);
+            blockWidth = width;
+            blockHeight = (rowsPerStrip <= 0 || rowsPerStrip > height) ? height : (int) rowsPerStrip;
+            offsets = stripOffsets;
+            byteCounts = stripByteCounts;
+        }
+        blocksAcross = (width + blockWidth - 1) / blockWidth;
+        int blocksDown = (height + blockHeight - 1) / blockHeight;
+        if (offsets.length < blocksAcross * blocksDown)
+            return(false);
+        blockBytes = new long[blocksAcross * blocksDown];
+
+        // Every block must lie in the file, strips may be shorter when the last one is truncated
+        for (int b = 0; b < blocksAcross * blocksDown; b++) {
+            int rows = (tileOffsets != null) ? blockHeight : Math.min(blockHeight, height - b*blockHeight);
+            long size = (long) blockWidth * rows * bytesPerSample;
+            if (byteCounts != null && b < byteCounts.length && byteCounts[b] < size)
+                return(false);
+            if (offsets[b] + size > buffer.capacity())
+                return(false);
+            blockBytes[b] = (byteCounts != null && b < byteCounts.length) ? byteCounts[b] : size;
+        }
+        return(true);
+    }
+
+
+    /**
+     * Values of an IFD entry, inline if they fit in 4 bytes
+     */
+    private static long[] values(ByteBuffer buf, int entry) {
+        int type = buf.getShort(entry + 2) & 0xffff;
+        int count = buf.getInt(entry + 4);
+        int size = (type == 3) ? 2 : (type == 4) ? 4 : (type == 1) ? 1 : 0;
+        if (size == 0)
+            throw new IllegalArgumentException("Unsupported TIFF field type " + type);
+        int pos = (count*size <= 4) ? entry + 8 : buf.getInt(entry + 8);
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (type == 3)
+                values[i] = buf.getShort(pos + 2*i) & 0xffff;
+            else if (type == 4)
+                values[i] = buf.getInt(pos + 4*i) & 0xffffffffL;
+            else
+                values[i] = buf.get(pos + i) & 0xff;
+        }
+        return(values);
+    }
+
+
+    public int getWidth() {
+        return(width);
+    }
+
+    public int getHeight() {
+        return(height);
+    }
+
+
+    /**
+     * Byte counts of the strips or tiles read so far, a block is counted again each time a region touches it
+     */
+    public long getBytesRead() {
+        return(bytesRead);
+    }
+
+
+    /**
+     * Copy a region of the image, region must be inside the frame
+     */
+    public ImageProcessor readRegion(Rectangle r) {
+        ByteBuffer buf = buffer.duplicate().order(buffer.order());
+        for (int by = r.y / blockHeight; by <= (r.y + r.height - 1) / blockHeight; by++)
+            for (int bx = r.x / blockWidth; bx <= (r.x + r.width - 1) / blockWidth; bx++)
+                bytesRead += blockBytes[by*blocksAcross + bx];
+        int n = r.width * r.height;
+        byte[] bytes = (bytesPerSample == 1) ? new byte[n] : null;
+        short[] shorts = (bytesPerSample == 2) ? new short[n] : null;
+        float[] floats = (bytesPerSample == 4) ? new float[n] : null;
+
+        for (int y = r.y; y < r.y + r.height; y++) {
+            int by = y / blockHeight;
+            int rowInBlock = y % blockHeight;
+            int x = r.x;
+            int dst = (y - r.y) * r.width;
+            while (x < r.x + r.width) {
+                int bx = x / blockWidth;
+                int colInBlock = x % blockWidth;
+                int len = Math.min(r.x + r.width - x, blockWidth - colInBlock);
+                int pos = (int) (offsets[by*blocksAcross + bx] + ((long) rowInBlock*blockWidth + colInBlock) * bytesPerSample);
+                buf.position(pos);
+                if (bytes != null)
+                    buf.get(bytes, dst, len);
+                else if (shorts != null)
+                    buf.asShortBuffer().get(shorts, dst, len);
+                else
+                    buf.asFloatBuffer().get(floats, dst, len);
+                dst += len;
+                x += len;
+            }
+        }
+        if (bytes != null)
+            return(new ByteProcessor(r.width, r.height, bytes, null));
+        if (shorts != null)
+            return(new ShortProcessor(r.width, r.height, shorts, null));
+        return(new FloatProcessor(r.width, r.height, floats, null));
+    }
+
+
+    /**
+     * The mapping itself is released when the buffer is garbage collected
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,164 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Stage timers and counters of one image or of a whole batch, safe to update from several threads
+ * Code deep in Tools records into the metrics bound to the current thread, so that each
+ * pipeline stage can attribute its work to the image it is processing
+ * @author ORION-CIRB
+ */
+public class Metrics {
+
+    // Stages
+    public static final String CHANNEL_OPEN = "channel_open";
+    public static final String CROP = "crop";
+    public static final String NUCLEI_FILTERING = "nuclei_filtering";
+    public static final String CELLPOSE_LAUNCH = "cellpose_launch";
+    public static final String CELLPOSE_INFERENCE = "cellpose_inference";
+    public static final String MASK_RELOAD = "mask_reload";
+    public static final String OBJECT_FILTERING = "object_filtering";
+    public static final String SIGNAL_SCREEN = "signal_screen";
+    public static final String OVERLAY_SAVE = "overlay_save";
+    public static final String RESULT_WRITE = "result_write";
+
+    // Counters
+    // Size of the decoded crops, not of the bytes read from files
+    public static final String CROP_BYTES = "crop_bytes";
+    // Strips or tiles read from channel files, see ChannelReader.getBytesRead()
+    public static final String BYTES_READ = "bytes_read";
+    public static final String BYTES_WRITTEN = "bytes_written";
+    public static final String ROIS = "rois";
+    public static final String CELLS = "cfos_cells";
+    public static final String ROIS_NO_SIGNAL = "rois_no_signal";
+
+    public static final String HEADER = "Scope\tMetric\tCount\tValue\tUnit";
+
+    private static final ThreadLocal<Metrics> CURRENT = new ThreadLocal<>();
+
+    private final Map<String, LongAdder> nanos = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+
+    public static long start() {
+        return(System.nanoTime());
+    }
+
+
+    /**
+     * Add time elapsed since start to a stage
+     */
+    public void stop(String stage, long start) {
+        nanos.computeIfAbsent(stage, k -> new LongAdder()).add(System.nanoTime() - start);
+        calls.computeIfAbsent(stage, k -> new LongAdder()).increment();
+    }
+
+
+    public void add(String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(value);
+    }
+
+
+    /**
+     * Record current heap usage if above the peak seen so far
+     */
+    public void sampleHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        peakHeap.accumulateAndGet(used, Math::max);
+    }
+
+
+    /**
+     * Add all timers and counters of other, and keep the highest peak heap
+     */
+    public void merge(Metrics other) {
+        other.nanos.forEach((k, v) -> nanos.computeIfAbsent(k, x -> new LongAdder()).add(v.sum()));
+        other.calls.forEach((k, v) -> calls.computeIfAbsent(k, x -> new LongAdder()).add(v.sum()));
+        other.counters.forEach((k, v) -> counters.computeIfAbsent(k, x -> new LongAdder()).add(v.sum()));
+        peakHeap.accumulateAndGet(other.peakHeap.get(), Math::max);
+    }
+
+
+    /**
+     * Peak heap usage reported by the JVM memory pools since the last reset, more accurate than sampling
+     */
+    public void samplePoolsPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        peakHeap.accumulateAndGet(peak, Math::max);
+    }
+
+    public static void resetPoolsPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+
+    /**
+     * Write one tab-separated line per stage and counter
+     */
+    public void write(Writer writer, String scope) throws IOException {
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(nanos).entrySet())
+            writer.write(scope+"\t"+e.getKey()+"\t"+calls.get(e.getKey()).sum()+"\t"+(e.getValue().sum() / 1e6)+"\tms\n");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet())
+            writer.write(scope+"\t"+e.getKey()+"\t\t"+e.getValue().sum()+"\t"+(e.getKey().contains("bytes") ? "bytes" : "")+"\n");
+        writer.write(scope+"\tpeak_heap\t\t"+peakHeap.get()+"\tbytes\n");
+    }
+
+
+    /**
+     * Summary of stage times, for the log window
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(nanos).entrySet())
+            sb.append(e.getKey()).append(": ").append(String.format("%.1f", e.getValue().sum() / 1e9)).append(" s\n");
+        sb.append("peak heap: ").append(peakHeap.get() / (1024*1024)).append(" MB");
+        return(sb.toString());
+    }
+
+
+    /**
+     * Bind metrics to the current thread, null to unbind
+     */
+    public static void bind(Metrics metrics) {
+        if (metrics == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(metrics);
+    }
+
+    /**
+     * Add time to a stage of the metrics bound to the current thread, if any
+     */
+    public static void record(String stage, long start) {
+        Metrics metrics = CURRENT.get();
+        if (metrics != null)
+            metrics.stop(stage, start);
+    }
+
+    /**
+     * Add value to a counter of the metrics bound to the current thread, if any
+     */
+    public static void count(String counter, long value) {
+        Metrics metrics = CURRENT.get();
+        if (metrics != null)
+            metrics.add(counter, value);
+    }
+}
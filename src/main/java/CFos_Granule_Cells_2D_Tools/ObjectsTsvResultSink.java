@@ -0,0 +1,34 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Tab-separated table of c-Fos cells (objects.xls), one row per cell
+ * Label is the number of the cell in its ROI, from 1, in the order of the filtered Cellpose labels
+ * (the overlay is an RGB merge and doesn't hold label values)
+ * Cells of ROIs restored from a previous run are listed from their measurements cached in the manifest
+ * @author ORION-CIRB
+ */
+public class ObjectsTsvResultSink extends TsvResultSink {
+
+    public static final String HEADER = "Parent folder\tImage name\tROI name\tLabel\tArea (µm2)\tMean intensity\tIntegrated intensity\tCentroid X (µm)\tCentroid Y (µm)";
+
+
+    public ObjectsTsvResultSink(File file) throws IOException {
+        super(file, HEADER);
+    }
+
+
+    @Override
+    public void write(RoiResult result) throws IOException {
+        if (!result.hasObjects())
+            return;
+        String prefix = result.parentFolder+"\t"+result.imageName+"\t"+result.roiName+"\t";
+        for (int i = 0; i < result.objArea.length; i++) {
+            writer.write(prefix+(i+1)+"\t"+result.objArea[i]+"\t"+result.objMeanIntensity[i]+"\t"+result.objIntegratedIntensity[i]
+                    +"\t"+result.objCentroidX[i]+"\t"+result.objCentroidY[i]+"\n");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Manifest of ROIs already analyzed, used to resume or extend a previous run
+ * Each line holds image path, ROI name, input files signature, parameters hash and results row with objects measurements;
+ * a ROI is skipped when its files and the parameters are unchanged
+ * Lines are appended and flushed as soon as a ROI is done, so a crashed run can be resumed
+ * @author ORION-CIRB
+ */
+public class ResultCache implements Closeable {
+
+    public static final String MANIFEST = "manifest.tsv";
+
+    private final Map<String, String[]> entries = new HashMap<>();
+    private final BufferedWriter manifest;
+
+
+    /**
+     * Open manifest in outDir, previous entries are loaded if resume is true, discarded otherwise
+     */
+    public ResultCache(String outDir, boolean resume) throws IOException {
+        File manifestFile = new File(outDir, MANIFEST);
+        if (resume && manifestFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    // Row is the last field and contains tabs
+                    String[] fields = line.split("\t", 5);
+                    if (fields.length == 5)
+                        entries.put(fields[0]+"\t"+fields[1], new String[] {fields[2], fields[3], fields[4]});
+                }
+            }
+        }
+        manifest = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile, resume), StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Signature of input files: size and last modification time of each file
+     */
+    public static String filesSignature(String... files) {
+        StringBuilder signature = new StringBuilder();
+        for (String file : files) {
+            File f = new File(file);
+            signature.append(f.length()).append(':').append(f.lastModified()).append(';');
+        }
+        return(signature.toString());
+    }
+
+
+    /**
+     * SHA-1 of a parameters description
+     */
+    public static String hash(String parameters) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(parameters.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return(hex.toString());
+        } catch (NoSuchAlgorithmException e) {
+            return(Integer.toHexString(parameters.hashCode()));
+        }
+    }
+
+
+    /**
+     * Cached results row of a ROI, or null if the ROI has to be analyzed
+     */
+    public synchronized String get(String image, String roiName, String signature, String paramsHash) {
+        String[] entry = entries.get(image+"\t"+roiName);
+        if (entry == null || !entry[0].equals(signature) || !entry[1].equals(paramsHash))
+            return(null);
+        return(entry[2]);
+    }
+
+
+    /**
+     * Record results row of a ROI
+     */
+    public synchronized void put(String image, String roiName, String signature, String paramsHash, String row) throws IOException {
+        entries.put(image+"\t"+roiName, new String[] {signature, paramsHash, row});
+        manifest.write(image+"\t"+roiName+"\t"+signature+"\t"+paramsHash+"\t"+row+"\n");
+        manifest.flush();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        manifest.close();
+    }
+}
@@ -0,0 +1,20 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Destination of ROI results, written in input order by a single thread
+ * Output files only appear once committed, closing a sink that was not committed discards what was written
+ * @author ORION-CIRB
+ */
+public interface ResultSink extends Closeable {
+
+    void write(RoiResult result) throws IOException;
+
+    /**
+     * Complete output files, once all results are written
+     */
+    void commit() throws IOException;
+}
@@ -0,0 +1,59 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Read ROIs from a .roi file or a .zip of .roi files without the ROI Manager, so that it works headless
+ * ROIs are named as the ROI Manager does: name stored in the ROI, or file name, made unique with a -n suffix
+ * @author ORION-CIRB
+ */
+public class RoiFiles {
+
+    public static Roi[] read(String path) throws IOException {
+        List<Roi> rois = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        if (path.toLowerCase().endsWith(".zip")) {
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(path))) {
+                byte[] buf = new byte[8192];
+                for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                    if (!entry.getName().endsWith(".roi"))
+                        continue;
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    for (int n = zip.read(buf); n > 0; n = zip.read(buf))
+                        bytes.write(buf, 0, n);
+                    Roi roi = new RoiDecoder(bytes.toByteArray(), entry.getName()).getRoi();
+                    if (roi != null)
+                        add(rois, names, roi, FilenameUtils.getBaseName(entry.getName()));
+                }
+            }
+        } else {
+            Roi roi = new RoiDecoder(path).getRoi();
+            if (roi != null)
+                add(rois, names, roi, FilenameUtils.getBaseName(path));
+        }
+        return(rois.toArray(new Roi[0]));
+    }
+
+
+    private static void add(List<Roi> rois, Set<String> names, Roi roi, String fileName) {
+        String name = (roi.getName() != null) ? roi.getName() : fileName;
+        String unique = name;
+        for (int n = 1; names.contains(unique); n++)
+            unique = name + "-" + n;
+        names.add(unique);
+        roi.setName(unique);
+        rois.add(roi);
+    }
+}
@@ -0,0 +1,132 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+
+
+/**
+ * Results of one ROI: counts and measurements of each c-Fos cell
+ * Object measurements are copied into arrays sized to the number of cells, so that the label image
+ * can be released before results are written
+ * @author ORION-CIRB
+ */
+public class RoiResult {
+
+    public static final String HEADER = "Parent folder\tImage name\tROI name\tROI area (µm2)\tNb nuclei\tNb c-Fos cells";
+
+    public String parentFolder;
+    public String imageName;
+    public String roiName;
+    public double roiArea;
+    public int nbNuclei;
+    public int nbCFos;
+    // Path of the image relative to the images folder, not written in tables
+    public String imagePath = null;
+
+    // Per-object measurements, null for ROIs restored from a manifest written without them
+    public double[] objArea = null;
+    public double[] objMeanIntensity = null;
+    public double[] objIntegratedIntensity = null;
+    public double[] objCentroidX = null;
+    public double[] objCentroidY = null;
+
+
+    public RoiResult(String parentFolder, String imageName, String roiName, double roiArea, int nbNuclei, int nbCFos) {
+        this.parentFolder = parentFolder;
+        this.imageName = imageName;
+        this.roiName = roiName;
+        this.roiArea = roiArea;
+        this.nbNuclei = nbNuclei;
+        this.nbCFos = nbCFos;
+    }
+
+
+    /**
+     * Copy measurements of detections found in a crop starting at cropBounds
+     * Areas are in µm2, centroids in µm in the whole image frame
+     */
+    public void setObjects(Detections2D detections, Rectangle cropBounds, Calibration cal) {
+        int n = detections.size();
+        double pixArea = cal.pixelWidth * cal.pixelHeight;
+        objArea = new double[n];
+        objMeanIntensity = new double[n];
+        objIntegratedIntensity = new double[n];
+        objCentroidX = new double[n];
+        objCentroidY = new double[n];
+        for (int i = 0; i < n; i++) {
+            objArea[i] = detections.getArea(i) * pixArea;
+            objMeanIntensity[i] = detections.getMeanIntensity(i);
+            objIntegratedIntensity[i] = detections.getIntegratedIntensity(i);
+            objCentroidX[i] = (cropBounds.x + detections.getCentroidX(i)) * cal.pixelWidth;
+            objCentroidY[i] = (cropBounds.y + detections.getCentroidY(i)) * cal.pixelHeight;
+        }
+    }
+
+
+    public boolean hasObjects() {
+        return(objArea != null);
+    }
+
+
+    /**
+     * Tab-separated row, without line ending
+     */
+    public String toRow() {
+        return(parentFolder+"\t"+imageName+"\t"+roiName+"\t"+roiArea+"\t"+nbNuclei+"\t"+nbCFos);
+    }
+
+
+    /**
+     * Row of toRow() followed by a field with the measurements of all objects, to be cached in the manifest
+     * Objects are separated by ';', their area, mean and integrated intensity, centroid x and y by ','
+     */
+    public String toCacheRow() {
+        StringBuilder sb = new StringBuilder(toRow()).append('\t');
+        for (int i = 0; hasObjects() && i < objArea.length; i++) {
+            if (i > 0)
+                sb.append(';');
+            sb.append(objArea[i]).append(',').append(objMeanIntensity[i]).append(',').append(objIntegratedIntensity[i])
+                    .append(',').append(objCentroidX[i]).append(',').append(objCentroidY[i]);
+        }
+        return(sb.toString());
+    }
+
+
+    /**
+     * Parse a row written by toRow() or toCacheRow(), return null if malformed
+     * Objects are only set for rows of toCacheRow()
+     */
+    public static RoiResult fromRow(String row) {
+        String[] fields = row.split("\t", -1);
+        if (fields.length != 6 && fields.length != 7)
+            return(null);
+        try {
+            RoiResult result = new RoiResult(fields[0], fields[1], fields[2], Double.parseDouble(fields[3]),
+                    Integer.parseInt(fields[4]), Integer.parseInt(fields[5]));
+            if (fields.length == 7) {
+                String[] objects = fields[6].isEmpty() ? new String[0] : fields[6].split(";");
+                if (objects.length != result.nbCFos)
+                    return(null);
+                int n = objects.length;
+                result.objArea = new double[n];
+                result.objMeanIntensity = new double[n];
+                result.objIntegratedIntensity = new double[n];
+                result.objCentroidX = new double[n];
+                result.objCentroidY = new double[n];
+                for (int i = 0; i < n; i++) {
+                    String[] values = objects[i].split(",");
+                    if (values.length != 5)
+                        return(null);
+                    result.objArea[i] = Double.parseDouble(values[0]);
+                    result.objMeanIntensity[i] = Double.parseDouble(values[1]);
+                    result.objIntegratedIntensity[i] = Double.parseDouble(values[2]);
+                    result.objCentroidX[i] = Double.parseDouble(values[3]);
+                    result.objCentroidY[i] = Double.parseDouble(values[4]);
+                }
+            }
+            return(result);
+        } catch (NumberFormatException e) {
+            return(null);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Order of the rows of a shard (rows.tsv), one line per ROI with the path of its image relative to the images folder
+ * and its number of cells, so that Shards.merge can put rows of all shards back in the order of an unsharded run
+ * @author ORION-CIRB
+ */
+public class ShardOrderSink extends TsvResultSink {
+
+    public static final String HEADER = "Image path\tNb rows in objects table";
+
+
+    public ShardOrderSink(File file) throws IOException {
+        super(file, HEADER);
+    }
+
+
+    @Override
+    public void write(RoiResult result) throws IOException {
+        writer.write(result.imagePath+"\t"+(result.hasObjects() ? result.objArea.length : 0));
+        writer.write('\n');
+    }
+}
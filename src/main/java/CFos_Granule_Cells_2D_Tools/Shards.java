@@ -0,0 +1,216 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+
+/**
+ * Split of a dataset between independent jobs, and merge of their results
+ * Shard i of N (0 <= i < N) takes images by sorted index (index % N == i) or by hash of their path
+ * relative to the images folder, so that every node computes the same split without coordination
+ * Each shard writes its results, overlays, manifest and metrics in outDir/shard-i-of-N/,
+ * with the image path of each row (see ShardOrderSink)
+ * @author ORION-CIRB
+ */
+public class Shards {
+
+    private static final Pattern SHARD_DIR = Pattern.compile("shard-(\\d+)-of-(\\d+)");
+    private static final String[] TABLES = {"results.xls", "objects.xls"};
+    public static final String ROWS = "rows.tsv";
+
+
+    /**
+     * Images of shard among nbShards, images being sorted
+     */
+    public static List<Dataset.Image> select(List<Dataset.Image> images, int shard, int nbShards, boolean byHash) {
+        if (nbShards < 1 || shard < 0 || shard >= nbShards)
+            throw new IllegalArgumentException("Shard must be i/N with 0 <= i < N, got " + shard + "/" + nbShards);
+        List<Dataset.Image> selected = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            Dataset.Image image = images.get(i);
+            long key = i;
+            if (byHash) {
+                // Relative path, so that nodes mounting the dataset in different places agree
+                CRC32 crc = new CRC32();
+                crc.update((image.parentFolder + image.rootName).replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8));
+                key = crc.getValue();
+            }
+            if (key % nbShards == shard)
+                selected.add(image);
+        }
+        return(selected);
+    }
+
+
+    public static String shardDir(String outDir, int shard, int nbShards) {
+        return(outDir + "shard-" + shard + "-of-" + nbShards + File.separator);
+    }
+
+
+    /**
+     * Merge results tables and metrics of all shards of outDir into outDir, and move overlays there
+     * Rows are ordered by image path as Dataset.scan orders images, ROIs and cells of an image keep their order,
+     * so that tables are the same as those of an unsharded run
+     * Fails if a shard is missing or did not complete (results tables are only renamed into place at the end of a run)
+     */
+    public static void merge(String outDir, Tools tools) throws IOException {
+        File[] dirs = new File(outDir).listFiles((dir, name) -> SHARD_DIR.matcher(name).matches() && new File(dir, name).isDirectory());
+        if (dirs == null || dirs.length == 0)
+            throw new IOException("No shard-i-of-N folder found in " + outDir);
+        Arrays.sort(dirs, Comparator.comparing(File::getName));
+
+        // All shards of the same split must be there
+        int nbShards = -1;
+        boolean[] found = null;
+        for (File dir : dirs) {
+            Matcher m = SHARD_DIR.matcher(dir.getName());
+            m.matches();
+            int n = Integer.parseInt(m.group(2));
+            if (nbShards == -1) {
+                nbShards = n;
+                found = new boolean[n];
+            } else if (n != nbShards) {
+                throw new IOException("Shards of different splits found in " + outDir + ": " + nbShards + " and " + n);
+            }
+            int i = Integer.parseInt(m.group(1));
+            if (i >= nbShards || !new File(dir, TABLES[0]).exists() || !new File(dir, ROWS).exists())
+                throw new IOException("Shard " + dir.getName() + " is incomplete, no " + TABLES[0] + " or " + ROWS + " found");
+            found[i] = true;
+        }
+        for (int i = 0; i < nbShards; i++)
+            if (!found[i])
+                throw new IOException("Shard " + i + " of " + nbShards + " is missing in " + outDir);
+
+        mergeTable(dirs, new File(outDir, TABLES[0]), false);
+        mergeTable(dirs, new File(outDir, TABLES[1]), true);
+        mergeMetrics(dirs, new File(outDir, "metrics.tsv"));
+
+        // Overlays are moved next to the merged tables
+        int nbOverlays = 0;
+        for (File dir : dirs) {
+            File[] overlays = dir.listFiles((d, name) -> name.endsWith(".tif"));
+            if (overlays == null)
+                continue;
+            for (File overlay : overlays) {
+                Files.move(overlay.toPath(), new File(outDir, overlay.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                nbOverlays++;
+            }
+        }
+        tools.print("Merged " + nbShards + " shards in " + outDir + " (" + nbOverlays + " overlays moved)");
+    }
+
+
+    /**
+     * Concatenate tables with the same header, rows sorted by the image path listed for them in the rows file of their shard
+     * A line of the rows file stands for one row of results tables, or for as many rows as cells of objects tables
+     * The image path can't be read back from rows, as their parent folder is written without "/"
+     */
+    private static void mergeTable(File[] dirs, File out, boolean perCell) throws IOException {
+        String header = null;
+        // {image path, row}
+        List<String[]> rows = new ArrayList<>();
+        for (File dir : dirs) {
+            File file = new File(dir, out.getName());
+            if (!file.exists())
+                continue;
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty())
+                continue;
+            if (header == null)
+                header = lines.get(0);
+            else if (!header.equals(lines.get(0)))
+                throw new IOException("Header of " + file + " differs from other shards");
+            List<String> order = Files.readAllLines(new File(dir, ROWS).toPath(), StandardCharsets.UTF_8);
+            int line = 1;
+            for (String entry : order.subList(Math.min(1, order.size()), order.size())) {
+                String[] f = entry.split("\t", -1);
+                int n = perCell ? Integer.parseInt(f[1]) : 1;
+                for (int i = 0; i < n; i++, line++) {
+                    if (line >= lines.size())
+                        throw new IOException(file + " has fewer rows than listed in " + ROWS);
+                    rows.add(new String[] {f[0], lines.get(line)});
+                }
+            }
+            if (line != lines.size())
+                throw new IOException(file + " has more rows than listed in " + ROWS);
+        }
+        if (header == null)
+            return;
+        // Stable sort: rows of one image stay in the order they were written
+        rows.sort(Comparator.comparing(row -> row[0]));
+        List<String> sorted = new ArrayList<>(rows.size());
+        for (String[] row : rows)
+            sorted.add(row[1]);
+        writeAtomically(out, header, sorted);
+    }
+
+
+    /**
+     * Concatenate per-image metrics, and sum batch metrics of all shards
+     * Peak heap and batch wall time are the maximum over shards, as shards run in parallel
+     */
+    private static void mergeMetrics(File[] dirs, File out) throws IOException {
+        List<String> rows = new ArrayList<>();
+        // Batch metric name -> {count, value}, and its unit; timers have a count, counters don't
+        Map<String, double[]> batch = new LinkedHashMap<>();
+        Map<String, String> units = new LinkedHashMap<>();
+        Map<String, Boolean> timers = new LinkedHashMap<>();
+        for (File dir : dirs) {
+            File file = new File(dir, out.getName());
+            if (!file.exists())
+                continue;
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                String[] f = line.split("\t", -1);
+                if (f.length != 5)
+                    continue;
+                if (!f[0].equals("batch")) {
+                    rows.add(line);
+                    continue;
+                }
+                boolean max = f[1].equals("peak_heap") || f[1].equals("batch");
+                double[] acc = batch.computeIfAbsent(f[1], k -> new double[2]);
+                acc[0] += f[2].isEmpty() ? 0 : Long.parseLong(f[2]);
+                acc[1] = max ? Math.max(acc[1], Double.parseDouble(f[3])) : acc[1] + Double.parseDouble(f[3]);
+                units.put(f[1], f[4]);
+                timers.put(f[1], !f[2].isEmpty());
+            }
+        }
+        rows.sort(Comparator.comparing(line -> line.substring(0, line.indexOf('\t'))));
+        for (Map.Entry<String, double[]> e : batch.entrySet()) {
+            String name = e.getKey();
+            double[] acc = e.getValue();
+            if (timers.get(name))
+                rows.add("batch\t"+name+"\t"+(long) acc[0]+"\t"+acc[1]+"\t"+units.get(name));
+            else
+                rows.add("batch\t"+name+"\t\t"+(long) acc[1]+"\t"+units.get(name));
+        }
+        writeAtomically(out, Metrics.HEADER, rows);
+    }
+
+
+    private static void writeAtomically(File file, String header, List<String> rows) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write(header + "\n");
+            for (String row : rows)
+                writer.write(row + "\n");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
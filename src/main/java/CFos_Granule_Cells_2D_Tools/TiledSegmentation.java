@@ -0,0 +1,176 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Segmentation of large images by overlapping tiles
+ * Tiles are segmented by batches of tilesPerBatch, so that only a few tiles are in memory at a time,
+ * and their labels are stitched into a single label image: a tile label is merged with the label
+ * already found in the overlap region when their IoU in this region is above minIoU
+ * @author ORION-CIRB
+ */
+public class TiledSegmentation {
+
+    /**
+     * Segmentation of a batch of tiles, returning one label image per tile
+     */
+    public interface Segmenter {
+        List<ImagePlus> segment(List<ImagePlus> tiles) throws IOException;
+    }
+
+    private final int tileSize;
+    private final int overlap;
+    private final int tilesPerBatch;
+    private double minIoU = 0.25;
+
+
+    public TiledSegmentation(int tileSize, int overlap, int tilesPerBatch) {
+        this.tileSize = tileSize;
+        this.overlap = Math.min(overlap, tileSize/2);
+        this.tilesPerBatch = Math.max(1, tilesPerBatch);
+    }
+
+    public TiledSegmentation setMinIoU(double minIoU) {
+        this.minIoU = minIoU;
+        return this;
+    }
+
+
+    /**
+     * Whether the image has to be split in tiles
+     */
+    public boolean needsTiling(ImagePlus img) {
+        return(tileSize > 0 && (img.getWidth() > tileSize || img.getHeight() > tileSize));
+    }
+
+
+    /**
+     * Origins of tiles along one axis, the last tile ending on the image border
+     */
+    private List<Integer> tileOrigins(int size) {
+        List<Integer> origins = new ArrayList<>();
+        int step = tileSize - overlap;
+        for (int o = 0; ; o += step) {
+            if (o + tileSize >= size) {
+                origins.add(Math.max(0, size - tileSize));
+                break;
+            }
+            origins.add(o);
+        }
+        return(origins);
+    }
+
+
+    /**
+     * Segment the image tile by tile and return the stitched 16-bit label image
+     * Fails if more than 65535 labels are found, as they can't be told apart in a 16-bit image
+     */
+    public ImagePlus run(ImagePlus img, Segmenter segmenter) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] labels = new int[width*height];
+        boolean[] visited = new boolean[width*height];
+        int[] nbLabels = {0};
+
+        List<int[]> tiles = new ArrayList<>();
+        for (int y0 : tileOrigins(height))
+            for (int x0 : tileOrigins(width))
+                tiles.add(new int[] {x0, y0, Math.min(tileSize, width-x0), Math.min(tileSize, height-y0)});
+        System.out.println("Segmenting image " + img.getTitle() + " in " + tiles.size() + " tiles");
+
+        ImageProcessor ip = img.getProcessor();
+        for (int start = 0; start < tiles.size(); start += tilesPerBatch) {
+            List<int[]> batch = tiles.subList(start, Math.min(start+tilesPerBatch, tiles.size()));
+            List<ImagePlus> tileImgs = new ArrayList<>();
+            for (int[] t : batch) {
+                ip.setRoi(t[0], t[1], t[2], t[3]);
+                ImagePlus tileImg = new ImagePlus(img.getShortTitle() + "-tile" + t[0] + "-" + t[1], ip.crop());
+                tileImg.setCalibration(img.getCalibration());
+                tileImgs.add(tileImg);
+            }
+            ip.resetRoi();
+
+            List<ImagePlus> tileMasks = segmenter.segment(tileImgs);
+            for (int i = 0; i < batch.size(); i++) {
+                stitch(tileMasks.get(i).getProcessor(), batch.get(i), labels, visited, width, nbLabels);
+                tileImgs.get(i).flush();
+                tileMasks.get(i).flush();
+            }
+        }
+
+        if (nbLabels[0] > 65535)
+            throw new IOException(nbLabels[0] + " labels found in image " + img.getTitle() + ", more than a 16-bit label image can hold");
+        short[] pixels = new short[width*height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) labels[i];
+        ImagePlus imgLabels = new ImagePlus(img.getShortTitle() + "-cellpose", new ShortProcessor(width, height, pixels, null));
+        imgLabels.setCalibration(img.getCalibration());
+        return(imgLabels);
+    }
+
+
+    /**
+     * Add tile labels to the global label image
+     * In the region already covered by previous tiles, each tile label is matched with the global label
+     * of highest IoU; unmatched tile labels get a new global label
+     */
+    private void stitch(ImageProcessor mask, int[] tile, int[] labels, boolean[] visited, int width, int[] nbLabels) {
+        int x0 = tile[0], y0 = tile[1], w = tile[2], h = tile[3];
+
+        // Areas and intersections of tile and global labels in the overlap region
+        Map<Integer, Integer> tileArea = new HashMap<>();
+        Map<Integer, Integer> globalArea = new HashMap<>();
+        Map<Long, Integer> inter = new HashMap<>();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int i = (y0+y)*width + x0+x;
+                if (!visited[i])
+                    continue;
+                int t = (int) mask.getf(x, y);
+                int g = labels[i];
+                if (t != 0)
+                    tileArea.merge(t, 1, Integer::sum);
+                if (g != 0)
+                    globalArea.merge(g, 1, Integer::sum);
+                if (t != 0 && g != 0)
+                    inter.merge(((long) t << 32) | g, 1, Integer::sum);
+            }
+        }
+
+        Map<Integer, Integer> bestLabel = new HashMap<>();
+        Map<Integer, Double> bestIoU = new HashMap<>();
+        for (Map.Entry<Long, Integer> e : inter.entrySet()) {
+            int t = (int) (e.getKey() >>> 32);
+            int g = (int) (e.getKey() & 0xffffffffL);
+            double iou = e.getValue() / (double) (tileArea.get(t) + globalArea.get(g) - e.getValue());
+            if (iou >= minIoU && iou > bestIoU.getOrDefault(t, 0.0)) {
+                bestIoU.put(t, iou);
+                bestLabel.put(t, g);
+            }
+        }
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int i = (y0+y)*width + x0+x;
+                int t = (int) mask.getf(x, y);
+                if (t != 0 && labels[i] == 0) {
+                    Integer g = bestLabel.get(t);
+                    if (g == null) {
+                        g = ++nbLabels[0];
+                        bestLabel.put(t, g);
+                    }
+                    labels[i] = g;
+                }
+                visited[i] = true;
+            }
+        }
+    }
+}
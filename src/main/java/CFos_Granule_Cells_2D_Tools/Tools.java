@@ -1,7 +1,9 @@
 package CFos_Granule_Cells_2D_Tools;
 
-import CFos_Granule_Cells_2D_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
+import CFos_Granule_Cells_2D_Tools.Cellpose.CellposeMaskCache;
+import CFos_Granule_Cells_2D_Tools.Cellpose.CellposeSegmentImgPlusBatch;
 import CFos_Granule_Cells_2D_Tools.Cellpose.CellposeTaskSettings;
+import CFos_Granule_Cells_2D_Tools.Cellpose.CellposeWorker;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
@@ -12,24 +14,28 @@ import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.RGBStackMerge;
 import ij.plugin.filter.Analyzer;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.IOException;
 import static java.lang.Math.round;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import javax.swing.ImageIcon;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom2.Objects3DIntPopulation;
-import mcib3d.geom2.Objects3DIntPopulationComputation;
-import mcib3d.geom2.measurements.MeasureIntensity;
 import mcib3d.image3d.ImageHandler;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
 
@@ -38,12 +44,14 @@ import org.apache.commons.io.FilenameUtils;
  * @author ORION-CIRB
  */
 public class Tools {
-    private CLIJ2 clij2 = CLIJ2.getInstance();
+    private FilterEngine filterEngine = null;
     private final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     
     public String[] channelsName = {"Hoechst", "c-Fos"};
     public Calibration cal = new Calibration();
     public double pixArea = 0;
+    // Pixel size of each image read in its metadata, cal being used for images without one
+    public boolean useImageCalibration = true;
     
     // Nuclei detection
     private double meanNucArea = 50; 
@@ -53,10 +61,32 @@ public class Tools {
     public String cellposeCFosModel = "cyto";
     private double resizeFactor = 0.5;
     public int cellposeCFosDiameter = 25;
+    // Adaptive resize: images are resized so that cells of cfosCellDiameter µm measure cellposeCFosDiameter pixels
+    private boolean adaptiveResize = false;
+    private double cfosCellDiameter = 8.125;
+    private boolean resizeAveraging = false;
+    private static final double MIN_RESIZE_FACTOR = 0.05;
     private double minCFosArea = 20;
     private double maxCFosArea = 80;
     private double cfosIntensityThresh = 250;
     private boolean useGpu = true;
+    private boolean useCellposeWorker = true;
+    private CellposeWorker cellposeWorker = null;
+    private String cellposeTempDir = System.getProperty("cellpose.tempDir", IJ.getDirectory("Temp"));
+    private boolean useMaskCache = true;
+    private String maskCacheDir = System.getProperty("cellpose.maskCache.dir", System.getProperty("user.home")+File.separator+".cellpose_mask_cache");
+    private long maskCacheMaxMB = Long.getLong("cellpose.maskCache.maxMB", 2048);
+    private CellposeMaskCache maskCache = null;
+    private int cellposeTileSize = 1024;
+    private int cellposeTileOverlap = 64;
+    private int cellposeTilesPerBatch = 4;
+    private TiledSegmentation.Segmenter cellposeRunner = null;
+    
+    // Batch processing
+    public int memoryBudgetMB = (int) (Runtime.getRuntime().maxMemory() / 2 / (1024*1024));
+    public boolean resumeRun = false;
+    public boolean exportColumnar = false;
+    public int prefetchDepth = 2;
 
     
     /**
@@ -98,51 +128,6 @@ public class Tools {
     }
     
     
-    /**
-     * Find images extension
-     */
-    public String findImageType(File imagesFolder) {
-        File[] files = imagesFolder.listFiles();
-        for (File file: files) {
-            if(file.isFile()) {
-                String fileExt = FilenameUtils.getExtension(file.getName());
-                switch (fileExt) {
-                    case "tif" :
-                        return(fileExt);
-                    case "TIF" :
-                        return(fileExt);
-                }
-            } else if (file.isDirectory() && !file.getName().equals("Results") && !file.getName().equals("Acquisition")) {
-                String fileExt = findImageType(file);
-                if(fileExt != null) {
-                    return(fileExt);
-                }
-            }
-        }
-        return(null);
-    }
-    
-    
-    /**
-     * Find images in folder
-     */
-    public void findImages(String imagesFolder, String imageExt, ArrayList<String> imageFiles) {
-        File inDir = new File(imagesFolder);
-        File[] files = inDir.listFiles();
-        
-        for (File file: files) {
-            if(file.isFile()) {
-                String fileExt = FilenameUtils.getExtension(file.getName());
-                if (fileExt.equals(imageExt) && !file.getName().startsWith("."))
-                    imageFiles.add(file.getAbsolutePath());
-            } else if (file.isDirectory() && !file.getName().equals("Results")) {
-                findImages(file.getAbsolutePath(), imageExt, imageFiles);
-            }
-        }
-        Collections.sort(imageFiles);
-    }
-    
-    
 
             /**
      * Find channels name
@@ -230,13 +215,28 @@ public class Tools {
         
         gd.addMessage("c-Fos cells detection", Font.getFont("Monospace"), Color.blue);
         gd.addDirectoryField("Cellpose environment path: ", cellposeEnvDirPath);
+        gd.addCheckbox("Keep Cellpose model loaded between ROIs", useCellposeWorker);
+        gd.addDirectoryField("Cellpose temp folder (fast local disk): ", cellposeTempDir);
+        gd.addCheckbox("Reuse cached Cellpose masks", useMaskCache);
         
+        gd.addCheckbox("Resize images from c-Fos cell diameter", adaptiveResize);
+        gd.addNumericField("c-Fos cell diameter (µm): ", cfosCellDiameter, 2);
+        gd.addCheckbox("Average pixels when downsizing", resizeAveraging);
         gd.addNumericField("Min c-Fos area (µm2): ", minCFosArea);
         gd.addNumericField("Max c-Fos area (µm2): ", maxCFosArea);
         gd.addNumericField("Mean intensity threshold : ", cfosIntensityThresh);
+        gd.addNumericField("Cellpose tile size (pixels, 0 = no tiling): ", cellposeTileSize, 0);
+        gd.addNumericField("Cellpose tile overlap (pixels): ", cellposeTileOverlap, 0);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY pixel size (µm): ", cal.pixelWidth, 4);
+        gd.addCheckbox("Use pixel size of each image metadata if found", useImageCalibration);
+        
+        gd.addMessage("Batch processing", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Memory budget for images in progress (MB): ", memoryBudgetMB, 0);
+        gd.addNumericField("Images read ahead: ", prefetchDepth, 0);
+        gd.addCheckbox("Resume previous run (skip ROIs already analyzed)", resumeRun);
+        gd.addCheckbox("Export binary columnar tables (ROIs and c-Fos cells)", exportColumnar);
         gd.showDialog();
         
         String[] chChoices = new String[channelsName.length];
@@ -247,78 +247,179 @@ public class Tools {
         
         meanNucArea = gd.getNextNumber();
         
+        cellposeEnvDirPath = gd.getNextString();
+        cellposeTempDir = gd.getNextString();
+        useCellposeWorker = gd.getNextBoolean();
+        useMaskCache = gd.getNextBoolean();
+        adaptiveResize = gd.getNextBoolean();
+        cfosCellDiameter = gd.getNextNumber();
+        resizeAveraging = gd.getNextBoolean();
         minCFosArea = gd.getNextNumber();
         maxCFosArea = gd.getNextNumber();
         cfosIntensityThresh = gd.getNextNumber();
+        cellposeTileSize = (int) gd.getNextNumber();
+        cellposeTileOverlap = (int) gd.getNextNumber();
         
         cal.pixelWidth = cal.pixelHeight = gd.getNextNumber();
         cal.pixelDepth = 1;
         pixArea = cal.pixelWidth*cal.pixelHeight;  
+        useImageCalibration = gd.getNextBoolean();
+        
+        memoryBudgetMB = (int) gd.getNextNumber();
+        prefetchDepth = (int) gd.getNextNumber();
+        resumeRun = gd.getNextBoolean();
+        exportColumnar = gd.getNextBoolean();
         
         return(chChoices);
     }
     
     
+    /**
+     * Set parameters from properties instead of the dialog box, for headless runs
+     * Keys are those of the dialog box, missing keys keep their default value:
+     * nucleiChannel, cfosChannel, meanNucArea, cellposeEnvDir, cellposeWorker, cellposeTempDir, maskCache,
+     * adaptiveResize, cfosCellDiameter, resizeAveraging, minCFosArea, maxCFosArea, cfosIntensityThresh, tileSize, tileOverlap,
+     * pixelSize, imageCalibration, memoryBudgetMB, prefetchDepth, resume, exportColumnar
+     * Return channels names
+     */
+    public String[] loadParameters(Properties props, String[] channels) {
+        String[] chs = {props.getProperty("nucleiChannel", channels[0]), props.getProperty("cfosChannel", channels[1])};
+        meanNucArea = Double.parseDouble(props.getProperty("meanNucArea", String.valueOf(meanNucArea)));
+        
+        cellposeEnvDirPath = props.getProperty("cellposeEnvDir", cellposeEnvDirPath);
+        cellposeTempDir = props.getProperty("cellposeTempDir", cellposeTempDir);
+        useCellposeWorker = Boolean.parseBoolean(props.getProperty("cellposeWorker", String.valueOf(useCellposeWorker)));
+        useMaskCache = Boolean.parseBoolean(props.getProperty("maskCache", String.valueOf(useMaskCache)));
+        adaptiveResize = Boolean.parseBoolean(props.getProperty("adaptiveResize", String.valueOf(adaptiveResize)));
+        cfosCellDiameter = Double.parseDouble(props.getProperty("cfosCellDiameter", String.valueOf(cfosCellDiameter)));
+        resizeAveraging = Boolean.parseBoolean(props.getProperty("resizeAveraging", String.valueOf(resizeAveraging)));
+        minCFosArea = Double.parseDouble(props.getProperty("minCFosArea", String.valueOf(minCFosArea)));
+        maxCFosArea = Double.parseDouble(props.getProperty("maxCFosArea", String.valueOf(maxCFosArea)));
+        cfosIntensityThresh = Double.parseDouble(props.getProperty("cfosIntensityThresh", String.valueOf(cfosIntensityThresh)));
+        cellposeTileSize = Integer.parseInt(props.getProperty("tileSize", String.valueOf(cellposeTileSize)));
+        cellposeTileOverlap = Integer.parseInt(props.getProperty("tileOverlap", String.valueOf(cellposeTileOverlap)));
+        
+        cal.pixelWidth = cal.pixelHeight = Double.parseDouble(props.getProperty("pixelSize", String.valueOf(cal.pixelWidth)));
+        cal.pixelDepth = 1;
+        pixArea = cal.pixelWidth*cal.pixelHeight;
+        useImageCalibration = Boolean.parseBoolean(props.getProperty("imageCalibration", String.valueOf(useImageCalibration)));
+        
+        memoryBudgetMB = Integer.parseInt(props.getProperty("memoryBudgetMB", String.valueOf(memoryBudgetMB)));
+        prefetchDepth = Integer.parseInt(props.getProperty("prefetchDepth", String.valueOf(prefetchDepth)));
+        resumeRun = Boolean.parseBoolean(props.getProperty("resume", String.valueOf(resumeRun)));
+        exportColumnar = Boolean.parseBoolean(props.getProperty("exportColumnar", String.valueOf(exportColumnar)));
+        
+        return(chs);
+    }
+    
+    
+    /**
+     * Description of all parameters affecting results, used to invalidate results of previous runs
+     */
+    public String parametersDescription(String[] chs) {
+        return(String.join(",", chs) + ";" + cal.pixelWidth + ";" + useImageCalibration + ";" + meanNucArea + ";" + cellposeCFosModel + ";" + cellposeCFosDiameter
+                + ";" + cellposeTileSize + ";" + cellposeTileOverlap + ";" + resizeFactor + ";" + adaptiveResize + ";" + cfosCellDiameter + ";" + resizeAveraging
+                + ";" + minCFosArea + ";" + maxCFosArea + ";" + cfosIntensityThresh);
+    }
+    
+    
+    /**
+     * Calibration of image: the one of its metadata if found and enabled, cal otherwise
+     */
+    public Calibration calibration(Dataset.Image image) {
+        return((useImageCalibration && image.cal != null) ? image.cal : cal);
+    }
+    
+    
+    /**
+     * Calibration of a cropped image: its own if set (see BatchScheduler), cal otherwise
+     */
+    public Calibration calibration(ImagePlus img) {
+        Calibration imgCal = img.getCalibration();
+        return(imgCal.scaled() ? imgCal : cal);
+    }
+    
+    
     /**
      * Get the number of nuclei in the image:
      * Compute nuclei total area and divide it by meanNucArea
+     * Filtering, masking and pixels counting are done by the filter engine in one call
      */
     public int getNbNuclei(ImagePlus img, Roi roi) {
-        ImagePlus imgG = gaussian_filter(img, 4);
-        imgG = threshold(imgG, "Otsu");
-        imgG = median_filter(imgG, 4, 4);
-        clearOutside(imgG, roi);
-        imgG.setCalibration(cal);
-
-        ResultsTable rt = new ResultsTable();
-        Analyzer analyzer = new Analyzer(imgG, Analyzer.AREA+Analyzer.LIMIT, rt);
-        IJ.setAutoThreshold(imgG, "Default dark");
-        analyzer.measure();
-        double area = rt.getValue("Area", 0);
-
-        flush_close(imgG);
+        ImagePlus imgMask = roiMask(img, roi);
+        double nbPixels = getFilterEngine().countForeground(img, imgMask, 4, "Otsu", 4);
+        flush_close(imgMask);
+        
+        Calibration imgCal = calibration(img);
+        double area = nbPixels * imgCal.pixelWidth * imgCal.pixelHeight;
         return ((int) round(area/meanNucArea));
     }
+    
+    
+    /**
+     * Binary mask of the ROI (1 inside, 0 outside) with the size of the cropped image
+     */
+    public ImagePlus roiMask(ImagePlus img, Roi roi) {
+        PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
+        poly.setLocation(0, 0);
+        ByteProcessor mask = new ByteProcessor(img.getWidth(), img.getHeight());
+        mask.setColor(1);
+        mask.fill(poly);
+        return(new ImagePlus("mask", mask));
+    }
      
     
     /**
-     * 2D Gaussian filter using CLIJ2
+     * Get the nuclei filtering backend:
+     * CLIJ2 if an OpenCL GPU is available, multithreaded CPU engine otherwise
+     * Can be forced with -Dcfos.filterEngine=clij or -Dcfos.filterEngine=cpu
+     */
+    public FilterEngine getFilterEngine() {
+        if (filterEngine != null)
+            return(filterEngine);
+        String engine = System.getProperty("cfos.filterEngine", "auto");
+        if (!engine.equals("cpu")) {
+            try {
+                // POCL exposes the CPU as an OpenCL device named pthread-..., it is slower than the Java engine
+                boolean gpuFound = false;
+                for (String device : CLIJ.getAvailableDeviceNames())
+                    if (!device.toLowerCase().startsWith("pthread"))
+                        gpuFound = true;
+                if (gpuFound || engine.equals("clij"))
+                    filterEngine = new ClijFilterEngine(CLIJ2.getInstance());
+            } catch (Throwable e) {
+                print("WARNING: OpenCL initialization failed (" + e.getMessage() + ")");
+            }
+        }
+        if (filterEngine == null) {
+            print("No OpenCL GPU found, nuclei filtering will run on CPU");
+            filterEngine = new CpuFilterEngine();
+        }
+        return(filterEngine);
+    }
+    
+    
+    /**
+     * 2D Gaussian filter
      */ 
     public ImagePlus gaussian_filter(ImagePlus img, double sizeXY) {
-       ClearCLBuffer imgCL = clij2.push(img);
-       ClearCLBuffer imgCLGauss = clij2.create(imgCL);
-       clij2.gaussianBlur2D(imgCL, imgCLGauss, sizeXY, sizeXY);
-       clij2.release(imgCL);
-       ImagePlus imgGauss = clij2.pull(imgCLGauss);
-       clij2.release(imgCLGauss);
-       return(imgGauss);
+       return(getFilterEngine().gaussianBlur(img, sizeXY));
     }
     
     
     /**
-     * Threshold using CLIJ2
+     * Threshold
      */
     public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCLBin);
-        return(imgBin);
+        return(getFilterEngine().threshold(img, thMed));
     }
     
     
     /**
-     * 2D median filter using CLIJ2
+     * 2D median filter
      */ 
     public ImagePlus median_filter(ImagePlus img, double sizeXY, double sizeZ) {
-       ClearCLBuffer imgCL = clij2.push(img);
-       ClearCLBuffer imgCLMed = clij2.create(imgCL);
-       clij2.median2DBox(imgCL, imgCLMed, sizeXY, sizeXY);
-       clij2.release(imgCL);
-       ImagePlus imgMed = clij2.pull(imgCLMed);
-       clij2.release(imgCLMed);
-       return(imgMed);
+       return(getFilterEngine().median(img, sizeXY));
     }
     
     
@@ -342,46 +443,285 @@ public class Tools {
     /*
      * Look for all cells in a 2D image with CellPose
      */
-   public Objects3DIntPopulation cellposeDetection(ImagePlus img, Roi roi){
-        // Resize image to speed up Cellpose computation
-        ImagePlus imgResized = img.resize((int)(img.getWidth()*resizeFactor), (int)(img.getHeight()*resizeFactor), "none");
+   public Detections2D cellposeDetection(ImagePlus img, Roi roi) throws IOException {
+        return(cellposeDetection(Collections.singletonList(img), Collections.singletonList(roi)).get(0));
+    }
+   
+   
+    /*
+     * Look for all cells in a list of 2D images with a single CellPose run
+     * Images can come from different files, each one is given with its ROI
+     * Images whose ROI can't contain a cell passing the filters are not segmented, see hasCFosSignal()
+     */
+   public ArrayList<Detections2D> cellposeDetection(List<ImagePlus> imgs, List<Roi> rois) throws IOException {
+        ArrayList<Detections2D> detections = new ArrayList<>(Collections.nCopies(imgs.size(), (Detections2D) null));
+        ArrayList<ImagePlus> imgsSignal = new ArrayList<>();
+        ArrayList<Roi> roisSignal = new ArrayList<>();
+        ArrayList<Integer> indexSignal = new ArrayList<>();
+        for (int i = 0; i < imgs.size(); i++) {
+            long t = Metrics.start();
+            boolean signal = hasCFosSignal(imgs.get(i), rois.get(i));
+            Metrics.record(Metrics.SIGNAL_SCREEN, t);
+            if (signal) {
+                imgsSignal.add(imgs.get(i));
+                roisSignal.add(rois.get(i));
+                indexSignal.add(i);
+            } else {
+                System.out.println("No c-Fos signal above " + cfosIntensityThresh + " in ROI " + rois.get(i).getName() + ", Cellpose skipped");
+                Metrics.count(Metrics.ROIS_NO_SIGNAL, 1);
+                detections.set(i, emptyDetections(imgs.get(i)));
+            }
+        }
+        if (!imgsSignal.isEmpty()) {
+            ArrayList<Detections2D> detectionsSignal = segmentAndFilter(imgsSignal, roisSignal);
+            for (int j = 0; j < detectionsSignal.size(); j++)
+                detections.set(indexSignal.get(j), detectionsSignal.get(j));
+        }
+        return(detections);
+    }
+   
+   
+    /*
+     * Segment images with CellPose and filter detections
+     */
+   private ArrayList<Detections2D> segmentAndFilter(List<ImagePlus> imgs, List<Roi> rois) throws IOException {
+        // Resize images to speed up Cellpose computation
+        ArrayList<ImagePlus> imgsResized = new ArrayList<>();
+        for (ImagePlus img : imgs) {
+            double factor = resizeFactor(img);
+            int width = Math.max(1, (int)(img.getWidth()*factor));
+            int height = Math.max(1, (int)(img.getHeight()*factor));
+            imgsResized.add(img.resize(width, height, resizeAveraging ? "bilinear average" : "none"));
+        }
 
         // Define CellPose settings
         CellposeTaskSettings settings = new CellposeTaskSettings(cellposeCFosModel, 1, cellposeCFosDiameter, cellposeEnvDirPath);
         settings.useGpu(useGpu);
+        settings.setTempDir(cellposeTempDir);
         
-        // Run CellPose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgResized);
-        ImagePlus imgOut = cellpose.run(); 
-        imgOut = imgOut.resize(img.getWidth(), img.getHeight(), "none");
-        clearOutside(imgOut, roi);
-        imgOut.setCalibration(cal);
+        // Large crops are segmented by tiles, the others all together
+        ArrayList<ImagePlus> imgsOut = new ArrayList<>(Collections.nCopies(imgsResized.size(), (ImagePlus) null));
+        ArrayList<ImagePlus> imgsBatch = new ArrayList<>();
+        ArrayList<Integer> indexBatch = new ArrayList<>();
+        TiledSegmentation tiler = new TiledSegmentation(cellposeTileSize, cellposeTileOverlap, cellposeTilesPerBatch);
+        for (int i = 0; i < imgsResized.size(); i++) {
+            if (tiler.needsTiling(imgsResized.get(i))) {
+                imgsOut.set(i, tiler.run(imgsResized.get(i), tiles -> segmentCached(tiles, settings)));
+            } else {
+                imgsBatch.add(imgsResized.get(i));
+                indexBatch.add(i);
+            }
+        }
+        if (!imgsBatch.isEmpty()) {
+            List<ImagePlus> masks = segmentCached(imgsBatch, settings);
+            for (int j = 0; j < masks.size(); j++)
+                imgsOut.set(indexBatch.get(j), masks.get(j));
+        }
         
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
-        int nbCellsBeforeFiltering = pop.getNbObjects();
-        System.out.println(nbCellsBeforeFiltering + " CellPose detections");
-       
+        ArrayList<Detections2D> detections = new ArrayList<>();
+        for (int i = 0; i < imgs.size(); i++) {
+            detections.add(filterCellposeMask(imgsOut.get(i), imgs.get(i), rois.get(i)));
+            flush_close(imgsResized.get(i));
+            flush_close(imgsOut.get(i));
+        }
+        return(detections);
+    }
+   
+   
+    /**
+     * Whether the ROI of img may contain a cell passing the size and intensity filters
+     * A kept cell covers at least n = minCFosArea pixels of the ROI, so its mean intensity is at most
+     * the mean of the n brightest pixels of the ROI: if this mean is below cfosIntensityThresh, no cell can be kept
+     */
+    public boolean hasCFosSignal(ImagePlus img, Roi roi) {
+        Calibration imgCal = calibration(img);
+        int minPixels = (int) Math.max(1, Math.ceil(minCFosArea / (imgCal.pixelWidth * imgCal.pixelHeight)));
+        // ROI pixels cleared as in the Cellpose mask, so that exactly the pixels cells can cover are screened
+        ByteProcessor maskProcessor = new ByteProcessor(img.getWidth(), img.getHeight());
+        maskProcessor.setValue(1);
+        maskProcessor.fill();
+        ImagePlus imgMask = new ImagePlus("mask", maskProcessor);
+        clearOutside(imgMask, roi);
+        byte[] mask = (byte[]) imgMask.getProcessor().getPixels();
+        ImageProcessor ip = img.getProcessor();
         
+        // Brightest pixels from the histogram of integer images, sorted values otherwise
+        double sum = 0;
+        int n = 0;
+        if (img.getBitDepth() == 8 || img.getBitDepth() == 16) {
+            int[] histo = new int[img.getBitDepth() == 8 ? 256 : 65536];
+            for (int i = 0; i < mask.length; i++)
+                if (mask[i] != 0)
+                    histo[(int) ip.getf(i)]++;
+            for (int v = histo.length - 1; v >= 0 && n < minPixels; v--) {
+                int count = Math.min(histo[v], minPixels - n);
+                sum += (double) v * count;
+                n += count;
+            }
+        } else {
+            float[] values = new float[mask.length];
+            int nbValues = 0;
+            for (int i = 0; i < mask.length; i++)
+                if (mask[i] != 0)
+                    values[nbValues++] = ip.getf(i);
+            Arrays.sort(values, 0, nbValues);
+            for (int i = nbValues - 1; i >= 0 && n < minPixels; i--, n++)
+                sum += values[i];
+        }
+        flush_close(imgMask);
+        // Fewer pixels than a cell: no cell can be kept
+        return(n == minPixels && sum / n >= cfosIntensityThresh);
+    }
+    
+    
+    /**
+     * No detection in img, for ROIs without c-Fos signal
+     */
+    private Detections2D emptyDetections(ImagePlus img) {
+        ImagePlus imgLabels = new ImagePlus("labels", new ShortProcessor(img.getWidth(), img.getHeight()));
+        imgLabels.setCalibration(calibration(img));
+        return(new Detections2D(imgLabels, img));
+    }
+    
+    
+    /**
+     * Factor applied to img before Cellpose: fixed, or in adaptive mode such that
+     * cells of cfosCellDiameter µm measure cellposeCFosDiameter pixels, images being never enlarged
+     */
+    public double resizeFactor(ImagePlus img) {
+        if (!adaptiveResize)
+            return(resizeFactor);
+        double factor = cellposeCFosDiameter * calibration(img).pixelWidth / cfosCellDiameter;
+        return(Math.min(1, Math.max(MIN_RESIZE_FACTOR, factor)));
+    }
+   
+   
+    /*
+     * Segment a list of images with CellPose,
+     * reusing masks of images already segmented with the same settings
+     */
+   private List<ImagePlus> segmentCached(List<ImagePlus> imgs, CellposeTaskSettings settings) throws IOException {
+        // Reuse masks of images already segmented with the same settings, run CellPose on the others
+        ArrayList<ImagePlus> imgsOut = new ArrayList<>(Collections.nCopies(imgs.size(), (ImagePlus) null));
+        ArrayList<String> keys = new ArrayList<>(Collections.nCopies(imgs.size(), (String) null));
+        ArrayList<ImagePlus> imgsToSegment = new ArrayList<>();
+        ArrayList<Integer> indexToSegment = new ArrayList<>();
+        for (int i = 0; i < imgs.size(); i++) {
+            if (useMaskCache) {
+                keys.set(i, CellposeMaskCache.key(imgs.get(i), settings));
+                // Only reloads of cached masks are timed, not hashing nor misses
+                long t = Metrics.start();
+                ImagePlus mask = getMaskCache().get(keys.get(i));
+                if (mask != null) {
+                    Metrics.record(Metrics.MASK_RELOAD, t);
+                    imgsOut.set(i, mask);
+                    continue;
+                }
+            }
+            imgsToSegment.add(imgs.get(i));
+            indexToSegment.add(i);
+        }
+        if (imgs.size() > imgsToSegment.size())
+            System.out.println((imgs.size() - imgsToSegment.size()) + " Cellpose mask(s) found in cache");
         
-        Objects3DIntPopulationComputation popComputation = new Objects3DIntPopulationComputation​(pop);
-        Objects3DIntPopulation popFilter = popComputation.getFilterSize(minCFosArea/pixArea, maxCFosArea/pixArea);
-        filterDetectionsByIntensity(popFilter, img);
-        popFilter.resetLabels();
-        System.out.println(popFilter.getNbObjects() + " detections remaining after size and intensity filtering (" + (pop.getNbObjects()-popFilter.getNbObjects()) + " filtered out)");
-
-        flush_close(imgResized);
-        flush_close(imgOut);
-        return(popFilter);
+        if (!imgsToSegment.isEmpty()) {
+            List<ImagePlus> masks = runCellpose(imgsToSegment, settings);
+            for (int j = 0; j < masks.size(); j++) {
+                int i = indexToSegment.get(j);
+                imgsOut.set(i, masks.get(j));
+                if (useMaskCache)
+                    getMaskCache().put(keys.get(i), masks.get(j));
+            }
+        }
+        return(imgsOut);
+    }
+   
+   
+    /*
+     * Run CellPose on a list of images, in the long-lived worker if enabled (started on first use)
+     */
+   private List<ImagePlus> runCellpose(List<ImagePlus> imgs, CellposeTaskSettings settings) throws IOException {
+        if (cellposeRunner != null)
+            return(cellposeRunner.segment(imgs));
+        ArrayList<ImagePlus> imgsOut = new ArrayList<>();
+        if (useCellposeWorker) {
+            if (cellposeWorker == null) {
+                long t = Metrics.start();
+                cellposeWorker = new CellposeWorker(settings);
+                cellposeWorker.start();
+                Metrics.record(Metrics.CELLPOSE_LAUNCH, t);
+            }
+            for (ImagePlus img : imgs) {
+                long t = Metrics.start();
+                imgsOut.add(cellposeWorker.run(img));
+                Metrics.record(Metrics.CELLPOSE_INFERENCE, t);
+            }
+        } else {
+            // One process per batch: launch, model loading and mask files I/O can't be told apart from inference
+            long t = Metrics.start();
+            CellposeSegmentImgPlusBatch cellpose = new CellposeSegmentImgPlusBatch(settings, imgs);
+            Map<ImagePlus, ImagePlus> masks = cellpose.run();
+            Metrics.record(Metrics.CELLPOSE_INFERENCE, t);
+            for (ImagePlus img : imgs) {
+                if (masks.get(img) == null)
+                    throw new IOException("No Cellpose mask found for image " + img.getTitle());
+                imgsOut.add(masks.get(img));
+            }
+        }
+        return(imgsOut);
     }
    
    
     /**
-     * Filter cells by intensity
+     * Segment with runner instead of Cellpose, e.g. to return precomputed masks in benchmarks (null to restore Cellpose)
      */
-    public Objects3DIntPopulation filterDetectionsByIntensity(Objects3DIntPopulation cellPop, ImagePlus img) {
-        cellPop.getObjects3DInt().removeIf(p -> 
-                (new MeasureIntensity(p, ImageHandler.wrap(img)).getValueMeasurement(MeasureIntensity.INTENSITY_AVG) < cfosIntensityThresh));
-        return(cellPop);
+    public void setCellposeRunner(TiledSegmentation.Segmenter runner) {
+        cellposeRunner = runner;
+    }
+    
+    public void setUseMaskCache(boolean useMaskCache) {
+        this.useMaskCache = useMaskCache;
+    }
+   
+   
+    /*
+     * On-disk cache of Cellpose masks, created on first use
+     */
+    private synchronized CellposeMaskCache getMaskCache() {
+        if (maskCache == null)
+            maskCache = new CellposeMaskCache(new File(maskCacheDir), maskCacheMaxMB*1024*1024);
+        return(maskCache);
+    }
+   
+   
+    /*
+     * Resize Cellpose mask back to image size and filter detections by size and intensity
+     */
+   private Detections2D filterCellposeMask(ImagePlus imgMask, ImagePlus img, Roi roi) {
+        long t = Metrics.start();
+        ImagePlus imgOut = imgMask.resize(img.getWidth(), img.getHeight(), "none");
+        clearOutside(imgOut, roi);
+        Calibration imgCal = calibration(img);
+        imgOut.setCalibration(imgCal);
+        
+        Detections2D detections = new Detections2D(imgOut, img);
+        double imgPixArea = imgCal.pixelWidth * imgCal.pixelHeight;
+        int nbCellsBeforeFiltering = detections.filter(minCFosArea/imgPixArea, maxCFosArea/imgPixArea, cfosIntensityThresh);
+        System.out.println(nbCellsBeforeFiltering + " CellPose detections");
+        System.out.println(detections.size() + " detections remaining after size and intensity filtering (" + (nbCellsBeforeFiltering-detections.size()) + " filtered out)");
+        Metrics.record(Metrics.OBJECT_FILTERING, t);
+        return(detections);
+    }
+   
+   
+    /**
+     * Stop Cellpose worker, if any
+     */
+    public void closeCellposeWorker() {
+        if (cellposeWorker != null) {
+            cellposeWorker.close();
+            cellposeWorker = null;
+        }
     }
     
     
@@ -392,7 +732,7 @@ public class Tools {
         PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
         poly.setLocation(0, 0);
         img.setRoi(poly);
-        img.setCalibration(cal);
+        img.setCalibration(calibration(img));
         
         ResultsTable rt = new ResultsTable();
         Analyzer analyzer = new Analyzer(img, Analyzer.AREA, rt);
@@ -401,6 +741,19 @@ public class Tools {
     }   
     
     
+    /*
+     * Save cells label image over the image
+     */
+    public void drawResults(Detections2D detections, ImagePlus img, String imageName, String outDir) {
+        ImagePlus[] imgColors = {null, detections.getLabels(), null, img};
+        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        imgObjects.setCalibration(calibration(img));
+        FileSaver ImgObjectsFile = new FileSaver(imgObjects);
+        ImgObjectsFile.saveAsTiff(outDir + imageName + ".tif"); 
+        flush_close(imgObjects);
+    }
+    
+    
     /*
      * Save population of cells in image
      */
@@ -0,0 +1,63 @@
+package CFos_Granule_Cells_2D_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * Tab-separated results table (results.xls), one row per ROI
+ * Rows are buffered and written to a temp file, renamed to the final name on commit and deleted otherwise,
+ * so that a crash never leaves a truncated table (the manifest is used to resume)
+ * @author ORION-CIRB
+ */
+public class TsvResultSink implements ResultSink {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private final File tmp;
+    protected final BufferedWriter writer;
+    private boolean committed = false;
+
+
+    public TsvResultSink(File file) throws IOException {
+        this(file, RoiResult.HEADER);
+    }
+
+    protected TsvResultSink(File file, String header) throws IOException {
+        this.file = file;
+        this.tmp = new File(file.getPath() + ".tmp");
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), BUFFER_SIZE);
+        writer.write(header + "\n");
+    }
+
+
+    @Override
+    public void write(RoiResult result) throws IOException {
+        writer.write(result.toRow());
+        writer.write('\n');
+    }
+
+
+    @Override
+    public void commit() throws IOException {
+        writer.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (committed)
+            return;
+        writer.close();
+        Files.deleteIfExists(tmp.toPath());
+    }
+}
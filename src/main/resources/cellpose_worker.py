@@ -0,0 +1,74 @@
+"""
+Long-lived Cellpose worker used by CellposeWorker.java
+The model is loaded once, then images are exchanged as raw buffers on stdin/stdout,
+no file is written and no outline is computed. Everything else goes to stderr.
+
+All integers are little-endian int32.
+Start:    worker sends b'CPWK'
+Request:  width, height, dtype (1 = uint8, 2 = uint16, 4 = float32), then width*height pixels
+          width = 0 stops the worker
+Reply:    0, width, height, then width*height uint16 labels
+          or 1, message length, then the utf-8 error message
+"""
+import argparse
+import os
+import struct
+import sys
+
+proto = sys.stdout.buffer
+sys.stdout = sys.stderr
+stdin = sys.stdin.buffer
+
+parser = argparse.ArgumentParser()
+parser.add_argument('--pretrained_model', default='cyto')
+parser.add_argument('--chan', type=int, default=0)
+parser.add_argument('--chan2', type=int, default=0)
+parser.add_argument('--diameter', type=float, default=30.)
+parser.add_argument('--flow_threshold', type=float, default=0.4)
+parser.add_argument('--cellprob_threshold', type=float, default=0.0)
+parser.add_argument('--use_gpu', action='store_true')
+args = parser.parse_args()
+
+import numpy as np
+from cellpose import models
+
+DTYPES = {1: '<u1', 2: '<u2', 4: '<f4'}
+
+if os.path.exists(args.pretrained_model):
+    model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=args.pretrained_model)
+else:
+    model = models.Cellpose(gpu=args.use_gpu, model_type=args.pretrained_model)
+
+
+def read_exact(n):
+    buf = bytearray()
+    while len(buf) < n:
+        chunk = stdin.read(n - len(buf))
+        if not chunk:
+            raise EOFError
+        buf += chunk
+    return bytes(buf)
+
+
+proto.write(b'CPWK')
+proto.flush()
+while True:
+    try:
+        width, height, dtype = struct.unpack('<iii', read_exact(12))
+    except EOFError:
+        break
+    if width == 0:
+        break
+    dt = np.dtype(DTYPES[dtype])
+    img = np.frombuffer(read_exact(width * height * dt.itemsize), dtype=dt).reshape(height, width)
+    try:
+        masks = model.eval(img, channels=[args.chan, args.chan2], diameter=args.diameter,
+                           flow_threshold=args.flow_threshold,
+                           cellprob_threshold=args.cellprob_threshold)[0]
+        proto.write(struct.pack('<iii', 0, width, height))
+        proto.write(np.ascontiguousarray(masks, dtype='<u2').tobytes())
+    except Exception as e:
+        msg = str(e).encode('utf-8')
+        proto.write(struct.pack('<ii', 1, len(msg)))
+        proto.write(msg)
+    proto.flush()